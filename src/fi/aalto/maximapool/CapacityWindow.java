@@ -0,0 +1,180 @@
+package fi.aalto.maximapool;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import fi.aalto.utils.StringUtils;
+
+
+/**
+ * A period, such as an exam, for which more processes are known in advance to
+ * be needed. It is set up in pool.conf like this:
+ *
+ * schedule.exam1.start = 2026-12-14 09:00
+ * schedule.exam1.end = 2026-12-14 12:00
+ * schedule.exam1.min = 10
+ * schedule.exam1.min.2017121800 = 40
+ *
+ * The min values are the number of processes to keep in the pool of each
+ * version (or, without a version, of every running version) during the
+ * window. The pools are filled up to these levels from the lead time before
+ * the start.
+ */
+class CapacityWindow {
+
+	/** The format of the start and end times, in the server's time zone. */
+	static final String TIME_FORMAT = "yyyy-MM-dd HH:mm";
+
+	/** The name of the window, as used in the property names. */
+	final String name;
+
+	/** When the window opens. (System.currentTimeMillis();) */
+	final long start;
+
+	/** When the window closes. (System.currentTimeMillis();) */
+	final long end;
+
+	/** The minimum for running versions not listed in versionMinimums, or 0. */
+	final int defaultMinimum;
+
+	/** Configuration name => minimum number of processes. */
+	final Map<String, Integer> versionMinimums;
+
+	/**
+	 * Constructor.
+	 * @param name the name of the window.
+	 * @param start when the window opens.
+	 * @param end when the window closes.
+	 * @param defaultMinimum the minimum for versions not listed, or 0.
+	 * @param versionMinimums configuration name => minimum number of processes.
+	 */
+	CapacityWindow(String name, long start, long end, int defaultMinimum,
+			Map<String, Integer> versionMinimums) {
+		this.name = name;
+		this.start = start;
+		this.end = end;
+		this.defaultMinimum = defaultMinimum;
+		this.versionMinimums = versionMinimums;
+	}
+
+	/**
+	 * Read all the windows set up in a set of properties.
+	 * @param properties the properties to read.
+	 * @return the windows, in order of start time.
+	 */
+	static List<CapacityWindow> loadProperties(Properties properties) {
+		Map<String, Properties> windowProperties = new LinkedHashMap<String, Properties>();
+		for (String key : properties.stringPropertyNames()) {
+			if (!key.startsWith("schedule.") || key.equals("schedule.lead")) {
+				continue;
+			}
+			String[] parts = key.split("\\.", 3);
+			if (parts.length < 3) {
+				throw new RuntimeException("Unrecognised setting " + key + " in pool.conf.");
+			}
+			if (!windowProperties.containsKey(parts[1])) {
+				windowProperties.put(parts[1], new Properties());
+			}
+			windowProperties.get(parts[1]).setProperty(parts[2], properties.getProperty(key).trim());
+		}
+
+		List<CapacityWindow> windows = new ArrayList<CapacityWindow>();
+		for (Map.Entry<String, Properties> entry : windowProperties.entrySet()) {
+			windows.add(create(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(windows, new Comparator<CapacityWindow>() {
+			@Override
+			public int compare(CapacityWindow a, CapacityWindow b) {
+				return Long.compare(a.start, b.start);
+			}
+		});
+		return windows;
+	}
+
+	/**
+	 * Make a window from its settings.
+	 * @param name the name of the window.
+	 * @param properties its settings, without the schedule.name. prefix.
+	 * @return the window.
+	 */
+	private static CapacityWindow create(String name, Properties properties) {
+		long start = parseTime(name, properties.getProperty("start"));
+		long end = parseTime(name, properties.getProperty("end"));
+		if (end <= start) {
+			throw new RuntimeException("Scheduled capacity " + name + " ends before it starts.");
+		}
+
+		int defaultMinimum = 0;
+		Map<String, Integer> versionMinimums = new LinkedHashMap<String, Integer>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.equals("min")) {
+				defaultMinimum = Integer.parseInt(properties.getProperty(key));
+			} else if (key.startsWith("min.")) {
+				versionMinimums.put(key.substring(4), Integer.parseInt(properties.getProperty(key)));
+			} else if (!key.equals("start") && !key.equals("end")) {
+				throw new RuntimeException("Unrecognised setting schedule." + name + "." + key +
+						" in pool.conf.");
+			}
+		}
+		return new CapacityWindow(name, start, end, defaultMinimum, versionMinimums);
+	}
+
+	/**
+	 * Helper used by create.
+	 */
+	private static long parseTime(String name, String value) {
+		if (value == null) {
+			throw new RuntimeException("Scheduled capacity " + name + " needs a start and an end.");
+		}
+		SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+		format.setLenient(false);
+		try {
+			return format.parse(value).getTime();
+		} catch (ParseException e) {
+			throw new RuntimeException("Cannot understand the time " + value + " for scheduled capacity " +
+					name + ". It should be like " + TIME_FORMAT + ".");
+		}
+	}
+
+	/**
+	 * @param testTime time to consider as now.
+	 * @param leadTime time (ms) before the start that the pools are filled.
+	 * @return whether the pools should be at this window's levels.
+	 */
+	boolean isActive(long testTime, long leadTime) {
+		return testTime >= start - leadTime && testTime < end;
+	}
+
+	/**
+	 * @param configurationName a configuration name.
+	 * @return the number of processes that configuration should have during
+	 * this window, or 0.
+	 */
+	int getMinimum(String configurationName) {
+		Integer minimum = versionMinimums.get(configurationName);
+		return minimum == null ? defaultMinimum : minimum;
+	}
+
+	/**
+	 * @return a description of the window, for the status page.
+	 */
+	String describe() {
+		List<String> levels = new ArrayList<String>();
+		if (defaultMinimum > 0) {
+			levels.add(defaultMinimum + " processes per version");
+		}
+		for (Map.Entry<String, Integer> entry : versionMinimums.entrySet()) {
+			levels.add(entry.getValue() + " of " + entry.getKey());
+		}
+		return StringUtils.formatTimestamp(new Date(start)) + " to " +
+				StringUtils.formatTimestamp(new Date(end)) + ": " + String.join(", ", levels);
+	}
+}
@@ -0,0 +1,148 @@
+package fi.aalto.maximapool;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fi.aalto.utils.StringUtils;
+
+
+/**
+ * Tracks start-up failures for one pool, and stops it starting more processes
+ * when they keep failing, for example because the command line is broken.
+ *
+ * After failureThreshold failures in a row the breaker trips. No processes are
+ * then started until a back-off period has passed, when a single trial start
+ * is allowed. If that fails the back-off is doubled, up to maximumBackoff.
+ * The first successful start resets the breaker.
+ */
+class CircuitBreaker {
+
+	/** Number of consecutive failures that trips the breaker. */
+	private final int failureThreshold;
+
+	/** Back-off (ms) after the breaker first trips. */
+	private final long initialBackoff;
+
+	/** Upper limit on the back-off (ms). */
+	private final long maximumBackoff;
+
+	/** Number of start-up failures since the last success. */
+	private int consecutiveFailures = 0;
+
+	/** Total number of start-up failures, for reporting. */
+	private long totalFailures = 0;
+
+	/** When the next trial start is allowed, once tripped. (System.currentTimeMillis();) */
+	private long retryAfter = 0;
+
+	/** Whether a trial start is under way. */
+	private boolean trialInProgress = false;
+
+	/** Why the most recent start-up failed, or null. */
+	private String lastFailure = null;
+
+	/** When the most recent start-up failed. */
+	private long lastFailureTime = 0;
+
+	/**
+	 * Constructor.
+	 * @param failureThreshold number of consecutive failures that trips the breaker.
+	 * @param initialBackoff back-off (ms) after the breaker first trips.
+	 * @param maximumBackoff upper limit on the back-off (ms).
+	 */
+	CircuitBreaker(int failureThreshold, long initialBackoff, long maximumBackoff) {
+		this.failureThreshold = Math.max(failureThreshold, 1);
+		this.initialBackoff = initialBackoff;
+		this.maximumBackoff = maximumBackoff;
+	}
+
+	/**
+	 * Ask whether a process may be started. When the breaker is tripped, this
+	 * returns true only once per back-off period, for the trial start. Every
+	 * time this returns true, recordSuccess or recordFailure must be called.
+	 * @param testTime time to consider as now.
+	 * @return whether to start a process.
+	 */
+	synchronized boolean allowStart(long testTime) {
+		if (!isTripped()) {
+			return true;
+		}
+		if (trialInProgress || testTime < retryAfter) {
+			return false;
+		}
+		trialInProgress = true;
+		return true;
+	}
+
+	/**
+	 * Record that a process started successfully. This resets the breaker.
+	 */
+	synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		trialInProgress = false;
+	}
+
+	/**
+	 * Record that starting a process failed.
+	 * @param testTime time to consider as now.
+	 * @param reason a description of the failure.
+	 */
+	synchronized void recordFailure(long testTime, String reason) {
+		consecutiveFailures++;
+		totalFailures++;
+		trialInProgress = false;
+		lastFailure = reason;
+		lastFailureTime = testTime;
+
+		if (isTripped()) {
+			int doublings = Math.min(consecutiveFailures - failureThreshold, 30);
+			retryAfter = testTime + Math.min(initialBackoff << doublings, maximumBackoff);
+		}
+	}
+
+	/**
+	 * @return whether the breaker is tripped, so processes cannot be relied on
+	 * to start.
+	 */
+	synchronized boolean isTripped() {
+		return consecutiveFailures >= failureThreshold;
+	}
+
+	/**
+	 * @return the total number of start-up failures.
+	 */
+	synchronized long getTotalFailures() {
+		return totalFailures;
+	}
+
+	/**
+	 * @return a description of why processes are not starting, for error messages.
+	 */
+	synchronized String describeFailure() {
+		return consecutiveFailures + " start-up failures in a row. Last: " + lastFailure;
+	}
+
+	/**
+	 * Return information about the state of the breaker.
+	 * @return a hash map where the keys are human-readable names,
+	 * and the values are string representations of those values.
+	 */
+	synchronized Map<String, String> getStatus() {
+		Map<String, String> status = new LinkedHashMap<String, String>();
+		if (isTripped()) {
+			long wait = Math.max(retryAfter - System.currentTimeMillis(), 0);
+			status.put("Start-up circuit breaker", "Tripped after " + consecutiveFailures +
+					" failures in a row. " + (trialInProgress ? "Trial start under way." :
+					"Next trial start in " + wait + " ms."));
+		} else {
+			status.put("Start-up circuit breaker", "OK");
+		}
+		status.put("Start-up failures", "" + totalFailures);
+		if (lastFailure != null) {
+			status.put("Last start-up failure", StringUtils.formatTimestamp(new Date(lastFailureTime)) +
+					": " + lastFailure);
+		}
+		return status;
+	}
+}
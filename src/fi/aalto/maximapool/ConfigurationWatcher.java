@@ -0,0 +1,175 @@
+package fi.aalto.maximapool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches the root directory for process configurations being added, changed
+ * or removed, and tells the PoolCoordinator about them, so that nobody has to
+ * re-scan by hand. Only the configurations that changed are read again.
+ *
+ * The root directory is watched for child directories appearing and going,
+ * and each child directory for its process.conf changing. Once some changes
+ * have been seen, the thread waits until nothing has changed for the settle
+ * time, so that a version that is still being copied into place is not read
+ * half-way through.
+ */
+class ConfigurationWatcher extends Thread {
+
+	/** The name of the file that holds each process configuration. */
+	private static final String CONFIG_FILE = "process.conf";
+
+	/** The coordinator to notify. */
+	private final PoolCoordinator coordinator;
+
+	/** The directory that contains the configurations. */
+	private final Path root;
+
+	/** Time (ms) to wait for changes to settle. */
+	private final long settleTime;
+
+	/** The watch service. */
+	private final WatchService watchService;
+
+	/**
+	 * Constructor.
+	 * @param coordinator the coordinator to notify of changes.
+	 * @param directoryRoot the directory that contains the configurations.
+	 * @param settleTime time (ms) to wait for changes to settle.
+	 * @throws IOException if the directory cannot be watched.
+	 */
+	ConfigurationWatcher(PoolCoordinator coordinator, File directoryRoot, long settleTime)
+			throws IOException {
+		super("MaximaPool-configuration-watcher");
+		setDaemon(true);
+		this.coordinator = coordinator;
+		this.root = directoryRoot.toPath();
+		this.settleTime = settleTime;
+
+		watchService = root.getFileSystem().newWatchService();
+		root.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		for (File subdirectory : directoryRoot.listFiles()) {
+			if (subdirectory.isDirectory()) {
+				watchSubdirectory(subdirectory.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Stop watching. Blocks until the thread has stopped.
+	 * @throws InterruptedException
+	 */
+	void stopRunning() throws InterruptedException {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		join();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Set<String> changed = new LinkedHashSet<String>();
+				WatchKey key = watchService.take();
+				try {
+					while (key != null) {
+						if (!handleEvents(key, changed)) {
+							// Events were lost. Re-read everything.
+							coordinator.scanConfigurations();
+							changed.clear();
+						}
+						key = watchService.poll(settleTime, TimeUnit.MILLISECONDS);
+					}
+				} catch (ClosedWatchServiceException e) {
+					throw e;
+				} catch (RuntimeException e) {
+					// Carry on watching, and refresh whatever was seen to change.
+					System.out.println("Error while handling configuration changes: " + e);
+					e.printStackTrace();
+				}
+
+				for (String configurationName : changed) {
+					try {
+						coordinator.refreshConfiguration(configurationName);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped.
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	/**
+	 * Work out which configurations are affected by the events on one key.
+	 * @param key a signalled key.
+	 * @param changed the names of the affected configurations are added to this.
+	 * @return false if events were lost, so everything must be re-read.
+	 */
+	private boolean handleEvents(WatchKey key, Set<String> changed) {
+		Path directory = (Path) key.watchable();
+		boolean complete = true;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				complete = false;
+				continue;
+			}
+
+			Path name = (Path) event.context();
+			if (directory.equals(root) && name.toString().startsWith(".")) {
+				// Not a version, for example the saved pool state.
+				continue;
+
+			} else if (directory.equals(root)) {
+				// A version directory has appeared or gone.
+				Path subdirectory = root.resolve(name);
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+						subdirectory.toFile().isDirectory()) {
+					watchSubdirectory(subdirectory);
+				}
+				changed.add(name.toString());
+
+			} else if (CONFIG_FILE.equals(name.toString())) {
+				changed.add(directory.getFileName().toString());
+			}
+		}
+
+		if (!key.reset() && !directory.equals(root)) {
+			// The directory has gone.
+			changed.add(directory.getFileName().toString());
+		}
+		return complete;
+	}
+
+	/**
+	 * Start watching a version directory for its process.conf changing.
+	 * @param subdirectory the directory.
+	 */
+	private void watchSubdirectory(Path subdirectory) {
+		try {
+			subdirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			System.out.println("Cannot watch " + subdirectory + " for configuration changes: " +
+					e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package fi.aalto.maximapool;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Builds saved images for process configurations that have an
+ * image.save.command, so that processes can be launched with everything
+ * already loaded.
+ *
+ * Images are built in the background, and stored in the configuration's
+ * directory under a name that includes a hash of the configuration, so an
+ * image is re-used until the configuration changes. Older images are deleted
+ * once no pool is launching processes from them.
+ */
+class ImageBuilder {
+
+	/** Value in buildStates while an image is being built. */
+	private static final String BUILDING = "building";
+
+	/** Value in buildStates when building an image failed. */
+	private static final String FAILED = "failed";
+
+	/** Value in buildStates when processes failed to start from an image. */
+	private static final String FAILED_TO_START = "failed to start processes";
+
+	/** The start of the name of each image file. */
+	private static final String IMAGE_PREFIX = "image-";
+
+	/**
+	 * Images that are being built, or that failed, keyed by image file path.
+	 */
+	private Map<String, String> buildStates = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Images that have been built, keyed by their directory, which may still
+	 * hold older images to delete.
+	 */
+	private Map<File, File> newImages = new ConcurrentHashMap<File, File>();
+
+	/**
+	 * Get the saved image for a configuration, if it is ready. If it is not,
+	 * start building it in the background, unless that is already happening
+	 * or has already failed.
+	 * @param configuration the configuration.
+	 * @return the image file, or null if the normal command line should be used.
+	 */
+	File getImage(final ProcessConfiguration configuration) {
+		if (configuration.imageSaveCommand == null || configuration.configurationDirectory == null) {
+			return null;
+		}
+
+		final File image = getImageFile(configuration);
+		if (image.isFile()) {
+			return FAILED_TO_START.equals(buildStates.get(image.getPath())) ? null : image;
+		}
+
+		if (buildStates.putIfAbsent(image.getPath(), BUILDING) != null) {
+			return null;
+		}
+
+		Thread builder = new Thread("MaximaPool-image-" + image.getName()) {
+			@Override
+			public void run() {
+				if (buildImage(configuration, image)) {
+					buildStates.remove(image.getPath());
+				} else {
+					buildStates.put(image.getPath(), FAILED);
+				}
+			}
+		};
+		builder.setDaemon(true);
+		builder.start();
+		return null;
+	}
+
+	/**
+	 * Forget about any failed builds, so they will be tried again.
+	 */
+	void clearFailures() {
+		buildStates.values().removeAll(Arrays.asList(FAILED, FAILED_TO_START));
+	}
+
+	/**
+	 * Record that processes failed to start from the image for a
+	 * configuration, so that getImage stops returning it until clearFailures.
+	 * @param configuration the configuration.
+	 */
+	void imageFailed(ProcessConfiguration configuration) {
+		File image = getImageFile(configuration);
+		System.out.println("Processes failed to start from image " + image.getPath() +
+				", so the normal command-line is used instead.");
+		buildStates.put(image.getPath(), FAILED_TO_START);
+	}
+
+	/**
+	 * Delete the images in directories where a newer one has been built,
+	 * unless a pool is still launching processes from them.
+	 * @param imagesInUse the images pools are launching processes from.
+	 */
+	void deleteStaleImages(Collection<File> imagesInUse) {
+		for (Map.Entry<File, File> entry : newImages.entrySet()) {
+			File[] files = entry.getKey().listFiles();
+			if (files == null) {
+				newImages.remove(entry.getKey());
+				continue;
+			}
+
+			boolean stillInUse = false;
+			for (File file : files) {
+				if (!file.getName().startsWith(IMAGE_PREFIX) || file.getName().endsWith(".tmp") ||
+						file.equals(entry.getValue()) || buildStates.containsKey(file.getPath())) {
+					// Not an old image, or one being built or that failed.
+					continue;
+				}
+				if (imagesInUse.contains(file)) {
+					stillInUse = true;
+				} else if (file.delete()) {
+					System.out.println("Deleted old image " + file.getPath());
+				}
+			}
+			if (!stillInUse) {
+				newImages.remove(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Describe the state of the image for a configuration.
+	 * @param configuration the configuration.
+	 * @return a string for the status page.
+	 */
+	String describe(ProcessConfiguration configuration) {
+		if (configuration.imageSaveCommand == null) {
+			return "Not used";
+		}
+		File image = getImageFile(configuration);
+		String state = buildStates.get(image.getPath());
+		if (state == null) {
+			return image.isFile() ? image.getPath() : "Not built";
+		}
+		return "Image " + state + ", using the normal command-line";
+	}
+
+	/**
+	 * Do the work of building an image. Starts a process in the normal way,
+	 * then sends the save command, and waits for it to finish.
+	 * @param configuration the configuration.
+	 * @param image where the image should end up.
+	 * @return whether the image was built.
+	 */
+	private boolean buildImage(ProcessConfiguration configuration, File image) {
+		// Save to a temporary file, then rename, so that a half-written image
+		// is never used.
+		File temporaryImage = new File(image.getPath() + ".tmp");
+		temporaryImage.delete();
+
+		long startTime = System.currentTimeMillis();
+		MaximaProcess maximaProcess = null;
+		try {
+			maximaProcess = new MaximaProcess(
+					ProcessPool.createProcessBuilder(configuration), configuration);
+			String command = configuration.imageSaveCommand.replace("%IMAGE%", temporaryImage.getPath());
+			long timeLeft = configuration.imageBuildTimeout - (System.currentTimeMillis() - startTime);
+			if (!maximaProcess.runAndWaitForExit(command + "\n", timeLeft)) {
+				System.out.println("Timed out building image " + image.getPath() + " after " +
+						configuration.imageBuildTimeout + " ms");
+				return false;
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Failed to build image " + image.getPath() + ": " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (maximaProcess != null) {
+				maximaProcess.kill();
+			}
+		}
+
+		if (!temporaryImage.isFile() || temporaryImage.length() == 0 || !temporaryImage.renameTo(image)) {
+			System.out.println("Saving image " + image.getPath() + " did not produce a file.");
+			temporaryImage.delete();
+			return false;
+		}
+
+		System.out.println("Built image " + image.getPath() + " in " +
+				(System.currentTimeMillis() - startTime) + " ms");
+		newImages.put(image.getParentFile(), image);
+		return true;
+	}
+
+	/**
+	 * @param configuration a configuration.
+	 * @return the file where the saved image for that configuration is kept.
+	 */
+	static File getImageFile(ProcessConfiguration configuration) {
+		return new File(configuration.configurationDirectory, IMAGE_PREFIX + hashConfiguration(configuration));
+	}
+
+	/**
+	 * Compute a hash of everything that affects the contents of a saved image.
+	 * @param configuration a configuration.
+	 * @return the hash, as a hex string.
+	 */
+	private static String hashConfiguration(ProcessConfiguration configuration) {
+		StringBuffer key = new StringBuffer(500);
+		key.append(configuration.commandLine).append('\n');
+		key.append(configuration.workingDirectory.getPath()).append('\n');
+		key.append(configuration.environment).append('\n');
+		if (configuration.extraFileToLoad != null) {
+			key.append(configuration.extraFileToLoad.getAbsolutePath()).append('\n');
+			key.append(configuration.extraFileToLoad.lastModified()).append('\n');
+			key.append(configuration.extraFileToLoad.length()).append('\n');
+		}
+		key.append(configuration.imageSaveCommand).append('\n');
+		key.append(configuration.imageCommandLine).append('\n');
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					key.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuffer hex = new StringBuffer(16);
+			for (int i = 0; i < 8; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
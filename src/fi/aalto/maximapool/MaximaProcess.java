@@ -2,19 +2,28 @@ package fi.aalto.maximapool;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import fi.aalto.utils.ChunkedByteBuffer;
 import fi.aalto.utils.FileUtils;
+import fi.aalto.utils.ProcUtils;
 import fi.aalto.utils.ReaderSucker;
 
 
@@ -25,6 +34,17 @@ import fi.aalto.utils.ReaderSucker;
  */
 class MaximaProcess {
 
+	/**
+	 * Names of the phases of starting a process, in the order they happen.
+	 * launch: ProcessBuilder.start(). started: until processHasStartedOutput
+	 * appears (or processIsReadyOutput if there is no extra file). load: from
+	 * sending the load command for extraFileToLoad until processIsReadyOutput.
+	 */
+	static final String[] STARTUP_PHASES = {"launch", "started", "load"};
+
+	/** How long (ms) each of the STARTUP_PHASES took for this process. */
+	private long[] startupPhaseTimes = new long[STARTUP_PHASES.length];
+
 	/** The configuration that determines how the process should be. */
 	private ProcessConfiguration configuration;
 
@@ -40,6 +60,9 @@ class MaximaProcess {
 	/** Connected to the STD input of the process. */
 	private OutputStreamWriter processInput = null;
 
+	/** The byte stream underlying processInput, for copying raw input. */
+	private OutputStream processStdin = null;
+
 	/** Connected to the STD output of the process. */
 	private ReaderSucker processOutput = null;
 
@@ -49,28 +72,121 @@ class MaximaProcess {
 	 */
 	private Semaphore runSwitch = new Semaphore(1);
 
+	/** The killString, as the bytes it will appear as in the output. */
+	private byte[] killBytes;
+
+	/** Position in the output where the search for killString should resume. */
+	private int killSearchFrom = 0;
+
+	/** Where killString was found in the output, or -1 if it has not been seen yet. */
+	private int killStringIndex = -1;
+
+	/**
+	 * The position just after killString, once it has been found. After
+	 * interrupt(), this is the end of the probe instead.
+	 */
+	private int killStringEnd = -1;
+
+	/** Whether OrphanReaper has been told about this process. */
+	private boolean orphansWatched = false;
+
+	/** Whether a failure to renice a process has been reported already. */
+	private static volatile boolean reniceFailureReported = false;
+
+	/**
+	 * Whether a process launched at a raised nice level can be put back to
+	 * normal priority, or null before that has been checked.
+	 */
+	private static Boolean priorityRestorable = null;
+
+	/**
+	 * Runs renice and taskset for processes taken from the pool, so that the
+	 * request does not wait for them.
+	 */
+	private static final ExecutorService priorityExecutor = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MaximaPool-priority");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The pool that created this process, if any. */
+	private ProcessPool owner = null;
+
+	/** CPU time (ms) the process had used when it was activated, or -1. */
+	private long cpuTimeAtActivation = -1;
+
+	/** Time (ms) doAndDie spent setting up the directories for files, or -1. */
+	private long fileSetupTime = -1;
+
+	/** Wall-clock time (ms) taken by the last doAndDie, or -1. */
+	private long evaluationTime = -1;
+
+	/** CPU time (ms) used since activation, measured at the end of doAndDie, or -1. */
+	private long evaluationCpuTime = -1;
+
+	/** Peak memory (bytes) since activation, measured at the end of doAndDie, or -1. */
+	private long evaluationPeakMemory = -1;
+
+	/** Number of probes sent by interrupt(), used to make each one unique. */
+	private int probeCount = 0;
+
+	/**
+	 * Where the output of interest starts. Output from commands sent with
+	 * evaluate(), and everything before it, is skipped.
+	 */
+	private int outputStart = 0;
+
+	/** When the output is being streamed, the number of bytes sent so far. */
+	private int streamedLength = 0;
+
+	/** The hash of the preamble this process has evaluated, if any. */
+	private String preambleHash = null;
+
 	/**
 	 * This constructor blocks till it is ready so create in a thread...
+	 * @throws RuntimeException if the process fails to start, exits, or does
+	 * not become ready within startupTimeout.
 	 */
 	MaximaProcess(ProcessBuilder processBuilder, ProcessConfiguration config) {
 		configuration = config;
+		killBytes = config.killString.getBytes(StandardCharsets.UTF_8);
 
-		liveUntil = System.currentTimeMillis() + config.startupTimeout;
+		long phaseStart = System.currentTimeMillis();
+		liveUntil = phaseStart + config.startupTimeout;
 
 		try {
 			process = processBuilder.start();
 		} catch (IOException e) {
-			System.out.println("Process startup failure...");
-			e.printStackTrace();
-			return;
+			throw new RuntimeException("Process startup failure: " + e.getMessage(), e);
+		}
+		if (config.newSession) {
+			OrphanReaper.processStarted(process.pid());
 		}
+		phaseStart = recordStartupPhase(0, phaseStart);
 
-		processOutput = new ReaderSucker(new BufferedReader(
-				new InputStreamReader(new BufferedInputStream(process
-						.getInputStream()))), runSwitch);
-		processInput = new OutputStreamWriter(new BufferedOutputStream(process
-				.getOutputStream()));
+		processOutput = new ReaderSucker(new BufferedInputStream(process
+				.getInputStream()), runSwitch);
+		processStdin = new BufferedOutputStream(process.getOutputStream());
+		processInput = new OutputStreamWriter(processStdin, StandardCharsets.UTF_8);
+
+		try {
+			waitUntilReady(config, phaseStart);
+		} catch (RuntimeException e) {
+			kill();
+			throw e;
+		}
+	}
 
+	/**
+	 * Helper used by the constructor. Wait for the process to start, and load
+	 * extraFileToLoad if there is one.
+	 * @param config the configuration.
+	 * @param phaseStart when the 'started' phase started.
+	 */
+	private void waitUntilReady(ProcessConfiguration config, long phaseStart) {
 		String test = config.processHasStartedOutput;
 
 		if (config.extraFileToLoad == null) {
@@ -78,8 +194,9 @@ class MaximaProcess {
 		}
 
 		waitForOutput(test);
+		phaseStart = recordStartupPhase(1, phaseStart);
 		if (config.extraFileToLoad == null) {
-			liveUntil = System.currentTimeMillis() + config.maximumLifetime;
+			liveUntil = System.currentTimeMillis() + getLifetime();
 			return;
 		}
 
@@ -95,8 +212,37 @@ class MaximaProcess {
 		}
 
 		waitForOutput(config.processIsReadyOutput);
+		recordStartupPhase(2, phaseStart);
+
+		liveUntil = System.currentTimeMillis() + getLifetime();
+	}
+
+	/**
+	 * @return how long (ms) this process should be kept once it is ready:
+	 * maximumLifetime, less a random amount up to lifetimeJitter.
+	 */
+	private long getLifetime() {
+		return configuration.maximumLifetime - (long) (Math.random() * configuration.lifetimeJitter);
+	}
+
+	/**
+	 * Helper used by the constructor to time the STARTUP_PHASES.
+	 * @param phase index into STARTUP_PHASES of the phase that has just finished.
+	 * @param phaseStart when the phase started.
+	 * @return the current time, which is when the next phase starts.
+	 */
+	private long recordStartupPhase(int phase, long phaseStart) {
+		long now = System.currentTimeMillis();
+		startupPhaseTimes[phase] = now - phaseStart;
+		return now;
+	}
 
-		liveUntil = System.currentTimeMillis() + config.maximumLifetime;
+	/**
+	 * @return how long (ms) each of the STARTUP_PHASES took. Phases that did not
+	 * happen are 0.
+	 */
+	long[] getStartupPhaseTimes() {
+		return startupPhaseTimes;
 	}
 
 	/**
@@ -118,9 +264,106 @@ class MaximaProcess {
 	 */
 	void activate() {
 		liveUntil += configuration.executionTimeout;
+		restorePriority();
+		cpuTimeAtActivation = readCpuTime();
+		ProcUtils.resetPeakResidentSetSize(process.pid());
 		runSwitch.release(1);
 	}
 
+	/**
+	 * Undo warmupNice and warmupCpus, so that a process taken from the pool
+	 * runs at normal priority, on the CPUs for active processes. The commands
+	 * are run in the background, so the request does not wait for them.
+	 */
+	private void restorePriority() {
+		final boolean renice = configuration.warmupNice > 0 && canRestorePriority(configuration.warmupNice);
+		final boolean repin = configuration.warmupCpus.length() > 0;
+		if (!renice && !repin) {
+			return;
+		}
+
+		final String pid = "" + process.pid();
+		priorityExecutor.execute(new Runnable() {
+			public void run() {
+				if (renice && !runCommand("renice", "-n", "0", "-p", pid) && !reniceFailureReported) {
+					reniceFailureReported = true;
+					System.out.println("Cannot put process " + pid + " back to normal priority.");
+				}
+				if (repin) {
+					String cpus = configuration.activeCpus;
+					if (cpus.length() == 0) {
+						// The CPUs the servlet container may use.
+						cpus = ProcUtils.readAllowedCpus();
+					}
+					if (cpus == null) {
+						cpus = "0-" + (Runtime.getRuntime().availableProcessors() - 1);
+					}
+					runCommand("taskset", "-a", "-p", "-c", cpus, pid);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Check, the first time this is called, whether a process launched at a
+	 * raised nice level can be put back to normal priority. That needs
+	 * CAP_SYS_NICE (or a suitable RLIMIT_NICE) for the servlet container's
+	 * user. If it cannot, processes should be launched at normal priority,
+	 * since otherwise evaluations would run at the warm-up nice level.
+	 * @param niceLevel the nice level to test with.
+	 * @return whether warmupNice can be used.
+	 */
+	static synchronized boolean canRestorePriority(int niceLevel) {
+		if (priorityRestorable == null) {
+			priorityRestorable = testRestorePriority(niceLevel);
+			if (!priorityRestorable) {
+				System.out.println("Cannot put processes back to normal priority, so warmup.nice is " +
+						"ignored. The servlet container's user needs CAP_SYS_NICE for it to be useful.");
+			}
+		}
+		return priorityRestorable;
+	}
+
+	/**
+	 * Helper used by canRestorePriority. Launch a short-lived process at a
+	 * nice level, and try to renice it back to 0.
+	 */
+	private static boolean testRestorePriority(int niceLevel) {
+		Process sleeper;
+		try {
+			sleeper = new ProcessBuilder("nice", "-n", "" + niceLevel, "sleep", "10")
+					.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		} catch (IOException e) {
+			return false;
+		}
+		try {
+			return runCommand("renice", "-n", "0", "-p", "" + sleeper.pid());
+		} finally {
+			sleeper.destroy();
+		}
+	}
+
+	/**
+	 * Run a short command, such as renice, and wait for it.
+	 * @param command the command and its arguments.
+	 * @return whether it succeeded.
+	 */
+	private static boolean runCommand(String... command) {
+		try {
+			Process helper = new ProcessBuilder(command).redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+			if (!helper.waitFor(1, TimeUnit.SECONDS)) {
+				helper.destroy();
+				return false;
+			}
+			return helper.exitValue() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Actually process a command.
 	 *
@@ -133,26 +376,60 @@ class MaximaProcess {
 	 * @return true if we did not timeout.
 	 */
 	boolean doAndDie(String command, long timeout, String plotUrlBase) {
+		return doAndDie(command, null, timeout, plotUrlBase, null);
+	}
+
+	/**
+	 * Actually process a command, forwarding the output to a stream as it is
+	 * produced. The killString is not forwarded.
+	 *
+	 * The command is either given as a String, or as a stream of bytes that
+	 * is copied to the process as it is read, through a fixed size buffer.
+	 *
+	 * @param command the command to execute.
+	 * @param commandStream if not null, the command is read from here instead.
+	 * The bytes must already be UTF-8.
+	 * @param timeout limit in ms
+	 * @param base URL that plot images will be served from.
+	 * @param stream where to send the output as it arrives. May be null, in
+	 * which case the output is only available from getOutput().
+	 * @return true if we did not timeout.
+	 */
+	boolean doAndDie(String command, InputStream commandStream, long timeout,
+			String plotUrlBase, OutputStream stream) {
 
 		if (configuration.fileHandling) {
+			long setupStart = System.currentTimeMillis();
 			setupFiles(plotUrlBase);
+			fileSetupTime = System.currentTimeMillis() - setupStart;
 		}
 
-		String killStringGen = "concat(\""
-				+ configuration.killString.substring(0, configuration.killString.length() / 2)
-				+ "\",\"" + configuration.killString.substring(configuration.killString.length() / 2)
-				+ "\");";
+		String killStringGen = getKillStringGen();
+		long evaluationStart = System.currentTimeMillis();
+
+		// Basic limit for catching hanged or too long runs. It is set before
+		// the input is copied, so that it covers the copy too. If the copy
+		// blocks past it, the upkeep thread kills the process.
+		liveUntil = timeout + System.currentTimeMillis();
 
 		try {
-			processInput.write(command + killStringGen + "quit();\n");
+			if (commandStream == null) {
+				processInput.write(command);
+			} else {
+				processInput.flush();
+				byte[] buffer = new byte[8192];
+				int count = commandStream.read(buffer);
+				while (count >= 0 && liveUntil >= System.currentTimeMillis()) {
+					processStdin.write(buffer, 0, count);
+					count = commandStream.read(buffer);
+				}
+			}
+			processInput.write(killStringGen + "quit();\n");
 			processInput.close();
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
 
-		// Basic limit for catching hanged or too long runs
-		liveUntil = timeout + System.currentTimeMillis();
-
 		// Give it some time before checking for closure
 		try {
 			Thread.sleep(1);
@@ -170,9 +447,11 @@ class MaximaProcess {
 				} catch (Exception ee) {
 
 				}
-			if (processOutput.currentValue().contains(configuration.killString)) {
+			if (findKillString() >= 0) {
+				measureEvaluation(evaluationStart);
 				processOutput.close();
 				kill();
+				streamOutput(stream, true);
 				return true;
 			}
 
@@ -181,16 +460,23 @@ class MaximaProcess {
 			}
 
 			if (liveUntil < System.currentTimeMillis()) {
+				measureEvaluation(evaluationStart);
 				processOutput.close();
 				kill();
+				streamOutput(stream, true);
 				return false;
 			}
 
 			if (readDone) {
+				// The process has gone, so only the time is known.
+				evaluationTime = System.currentTimeMillis() - evaluationStart;
 				processOutput.close();
+				streamOutput(stream, true);
 				return true;
 			}
 
+			stream = streamOutput(stream, false);
+
 			// Read not done. Wait some more.
 			try {
 				Thread.sleep(0, 100);
@@ -202,13 +488,329 @@ class MaximaProcess {
 		return true;
 	}
 
+	/**
+	 * Record the resources used by the evaluation in doAndDie. Must be called
+	 * while the process is still running.
+	 * @param evaluationStart when the evaluation started.
+	 */
+	private void measureEvaluation(long evaluationStart) {
+		evaluationTime = System.currentTimeMillis() - evaluationStart;
+
+		long cpuTime = readCpuTime();
+		if (cpuTime >= 0 && cpuTimeAtActivation >= 0) {
+			evaluationCpuTime = cpuTime - cpuTimeAtActivation;
+		}
+
+		long peakMemory = ProcUtils.readPeakResidentSetSize(process.pid());
+		if (peakMemory >= 0) {
+			for (ProcessHandle descendant : process.descendants().collect(
+					Collectors.<ProcessHandle>toList())) {
+				peakMemory += Math.max(ProcUtils.readPeakResidentSetSize(descendant.pid()), 0);
+			}
+			evaluationPeakMemory = peakMemory;
+		}
+	}
+
+	/**
+	 * @return the CPU time (ms) used so far by this process and those of its
+	 * children that are still running, or -1 if it is not known.
+	 */
+	private long readCpuTime() {
+		Duration cpuTime = process.info().totalCpuDuration().orElse(null);
+		if (cpuTime == null) {
+			return -1;
+		}
+		long total = cpuTime.toMillis();
+		for (ProcessHandle descendant : process.descendants().collect(
+				Collectors.<ProcessHandle>toList())) {
+			Duration childTime = descendant.info().totalCpuDuration().orElse(null);
+			if (childTime != null) {
+				total += childTime.toMillis();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return the time (ms) doAndDie spent setting up the directories for
+	 * generated files, or -1 if there was no file handling.
+	 */
+	long getFileSetupTime() {
+		return fileSetupTime;
+	}
+
+	/**
+	 * @return the wall-clock time (ms) taken by doAndDie, not counting the
+	 * file set-up, or -1 if it has not been called.
+	 */
+	long getEvaluationTime() {
+		return evaluationTime;
+	}
+
+	/**
+	 * @return the CPU time (ms) used by the process, and its children, between
+	 * being activated and the end of doAndDie, or -1 if that is not known.
+	 */
+	long getEvaluationCpuTime() {
+		return evaluationCpuTime;
+	}
+
+	/**
+	 * @return the peak memory (bytes) used by the process, and its children,
+	 * between being activated and the end of doAndDie, or -1 if that is not
+	 * known.
+	 */
+	long getEvaluationPeakMemory() {
+		return evaluationPeakMemory;
+	}
+
+	/**
+	 * @param owner the pool that created this process.
+	 */
+	void setOwner(ProcessPool owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * @return the pool that created this process, or null.
+	 */
+	ProcessPool getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Send a command, without ending the process, and wait until all its output
+	 * has arrived. Until skipOutput() is called, getOutput() and writeOutput()
+	 * return the output so far, up to the end of this command's output.
+	 *
+	 * The process must be active, or not yet deactivated.
+	 *
+	 * @param command the command to execute.
+	 * @param timeout limit in ms.
+	 * @return true if the command finished within the time limit.
+	 */
+	boolean evaluate(String command, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			processInput.write(command + getKillStringGen() + "\n");
+			processInput.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		while (findKillString() < 0) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			try {
+				process.exitValue();
+				// Process died.
+				return false;
+			} catch (IllegalThreadStateException e) {
+				// Still running, as it should be.
+			}
+			try {
+				Thread.sleep(0, 200);
+			} catch (InterruptedException e) {
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * After evaluate() has finished, skip all the output up to that point, so
+	 * that getOutput(), writeOutput() and streaming only see what comes next.
+	 * Does nothing if there is no finished command to skip.
+	 */
+	void skipOutput() {
+		if (findKillString() < 0) {
+			return;
+		}
+
+		outputStart = killStringEnd;
+		ChunkedByteBuffer output = processOutput.getBuffer();
+		if (output.size() > outputStart && output.byteAt(outputStart) == '"') {
+			// Skip the closing quote too.
+			outputStart++;
+		}
+		killSearchFrom = outputStart;
+		killStringIndex = -1;
+		streamedLength = outputStart;
+	}
+
+	/**
+	 * After evaluate() has timed out, try to get the process back to the
+	 * prompt by sending it SIGINT, which Maxima treats as an interrupt of the
+	 * current computation. Then send a probe, and wait up to
+	 * interruptGracePeriod for the answer.
+	 *
+	 * If this works, getOutput() and writeOutput() return the partial output,
+	 * up to the probe, and the process can be used again after skipOutput().
+	 *
+	 * @return true if the process is usable again. If false, it should be killed.
+	 */
+	boolean interrupt() {
+		if (configuration.interruptGracePeriod <= 0 || process == null || !process.isAlive()) {
+			return false;
+		}
+
+		long deadline = System.currentTimeMillis() + configuration.interruptGracePeriod;
+		try {
+			Process signaller = new ProcessBuilder("kill", "-INT", "" + process.pid()).start();
+			if (signaller.waitFor() != 0) {
+				return false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} catch (InterruptedException e) {
+			return false;
+		}
+
+		// The probe is the killString with a unique suffix, so that it cannot
+		// be confused with the killString of the interrupted command, in case
+		// that is still evaluated.
+		probeCount++;
+		String suffix = "-probe-" + probeCount;
+		byte[] probeBytes = (configuration.killString + suffix).getBytes(StandardCharsets.UTF_8);
+		try {
+			processInput.write(getKillStringGen(suffix) + "\n");
+			processInput.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		ChunkedByteBuffer output = processOutput.getBuffer();
+		int searchFrom = killSearchFrom;
+		while (true) {
+			int size = output.size();
+			int index = output.indexOf(probeBytes, searchFrom);
+			if (index >= 0) {
+				// If the killString of the interrupted command did appear, the
+				// partial output ends there.
+				killStringIndex = output.indexOf(killBytes, killSearchFrom);
+				killStringEnd = index + probeBytes.length;
+				return true;
+			}
+			searchFrom = Math.max(searchFrom, size - probeBytes.length + 1);
+
+			if (System.currentTimeMillis() > deadline || !process.isAlive()) {
+				return false;
+			}
+			try {
+				Thread.sleep(0, 200);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Prepare this process to be used for a session, where several commands
+	 * are sent with evaluate(), rather than one with doAndDie().
+	 * @param plotUrlBase URL that plot images will be served from.
+	 */
+	void startSession(String plotUrlBase) {
+		if (configuration.fileHandling) {
+			setupFiles(plotUrlBase);
+		}
+	}
+
+	/**
+	 * @return the hash of the preamble that has been evaluated by this process, or null.
+	 */
+	String getPreambleHash() {
+		return preambleHash;
+	}
+
+	/**
+	 * Record that this process has evaluated a preamble.
+	 * @param hash the preamble hash.
+	 */
+	void setPreambleHash(String hash) {
+		preambleHash = hash;
+	}
+
+	/**
+	 * @return Maxima code that outputs the killString, without the killString
+	 * itself appearing in the input.
+	 */
+	private String getKillStringGen() {
+		return getKillStringGen("");
+	}
+
+	/**
+	 * @param suffix text to add to the end of the killString.
+	 * @return Maxima code that outputs the killString followed by suffix,
+	 * without the killString itself appearing in the input.
+	 */
+	private String getKillStringGen(String suffix) {
+		return "concat(\""
+				+ configuration.killString.substring(0, configuration.killString.length() / 2)
+				+ "\",\"" + configuration.killString.substring(configuration.killString.length() / 2)
+				+ suffix + "\");";
+	}
+
+	/**
+	 * Send a command that is expected to make the process exit, for example
+	 * by saving an image, and wait for that to happen.
+	 * @param command the command to send.
+	 * @param timeout limit in ms.
+	 * @return true if the process exited within the time limit, false if it
+	 * timed out.
+	 * @throws RuntimeException if the command could not be sent.
+	 */
+	boolean runAndWaitForExit(String command, long timeout) {
+		if (process == null) {
+			throw new RuntimeException("The process did not start.");
+		}
+
+		try {
+			processInput.write(command);
+			processInput.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to send the command to the process.", e);
+		}
+
+		try {
+			return process.waitFor(Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Helper method. Waits until a particular string is detected in the output,
 	 * before returning.
 	 * @param test string to look for in the output.
 	 */
 	private void waitForOutput(String test) {
-		while (processOutput.currentValue().indexOf(test) < 0) {
+		byte[] testBytes = test.getBytes(StandardCharsets.UTF_8);
+		ChunkedByteBuffer output = processOutput.getBuffer();
+		int searchFrom = 0;
+		long exitTime = 0;
+		while (true) {
+			int size = output.size();
+			if (output.indexOf(testBytes, searchFrom) >= 0) {
+				break;
+			}
+			searchFrom = Math.max(searchFrom, size - testBytes.length + 1);
+
+			if (process.isAlive()) {
+				// Carry on waiting.
+			} else if (exitTime == 0) {
+				// Give the last of the output a moment to arrive.
+				exitTime = System.currentTimeMillis();
+			} else if (System.currentTimeMillis() - exitTime > 100) {
+				String lastOutput = processOutput.currentValue().trim();
+				if (lastOutput.length() > 200) {
+					lastOutput = "..." + lastOutput.substring(lastOutput.length() - 200);
+				}
+				throw new RuntimeException("Process exited with status " + process.exitValue() +
+						" before it was ready. Output: " + lastOutput);
+			}
+
 			try {
 				Thread.sleep(0, 200);
 			} catch (InterruptedException e) {
@@ -221,17 +823,89 @@ class MaximaProcess {
 	}
 
 	/**
-	 * @return the output of executing the command, up to, but not including killString.
+	 * Look for killString in the output, continuing from where the last call
+	 * left off.
+	 * @return the position of killString in the output, or -1 if it has not arrived yet.
 	 */
-	String getOutput() {
-		String out = processOutput.currentValue();
-		if (out.indexOf("\"" + configuration.killString) > 0) {
-			return out.substring(0, out.indexOf("\"" + configuration.killString));
-		} else if (out.indexOf(configuration.killString) > 0) {
-			return out.substring(0, out.indexOf(configuration.killString));
+	private int findKillString() {
+		if (killStringIndex >= 0) {
+			return killStringIndex;
+		}
+
+		ChunkedByteBuffer output = processOutput.getBuffer();
+		int size = output.size();
+		killStringIndex = output.indexOf(killBytes, killSearchFrom);
+		if (killStringIndex < 0) {
+			killSearchFrom = Math.max(killSearchFrom, size - killBytes.length + 1);
 		} else {
-			return out;
+			killStringEnd = killStringIndex + killBytes.length;
+		}
+		return killStringIndex;
+	}
+
+	/**
+	 * @return the length of the output in bytes, not counting killString,
+	 * the quote that preceeds it, and anything after it.
+	 */
+	private int outputEnd() {
+		int end = findKillString();
+		if (end <= 0) {
+			return processOutput.getBuffer().size();
 		}
+		if (end > outputStart && processOutput.getBuffer().byteAt(end - 1) == '"') {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Helper method used when streaming. Sends any output that has arrived since
+	 * the last call. Until the output is finished, enough bytes are held back
+	 * that a partially received killString is never sent.
+	 * @param stream where to send the output. May be null.
+	 * @param finished whether there will be no more output.
+	 * @return stream, or null if writing to it failed and streaming should stop.
+	 */
+	private OutputStream streamOutput(OutputStream stream, boolean finished) {
+		if (stream == null) {
+			return null;
+		}
+
+		int end = outputEnd();
+		if (!finished) {
+			end = Math.min(end, processOutput.getBuffer().size() - killBytes.length - 1);
+		}
+		if (end <= streamedLength) {
+			return stream;
+		}
+
+		try {
+			processOutput.getBuffer().writeTo(stream, streamedLength, end);
+			stream.flush();
+			streamedLength = end;
+			return stream;
+		} catch (IOException e) {
+			// The client has probably gone away. Let the evaluation finish anyway.
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return the output of executing the command, up to, but not including killString.
+	 */
+	String getOutput() {
+		return processOutput.getBuffer().toString(outputStart, outputEnd(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Copy the raw bytes of the output, up to but not including killString,
+	 * to a stream.
+	 * @param out where to write the output.
+	 * @throws IOException
+	 */
+	void writeOutput(OutputStream out) throws IOException {
+		processOutput.getBuffer().writeTo(out, outputStart, outputEnd());
 	}
 
 	/**
@@ -254,35 +928,65 @@ class MaximaProcess {
 	}
 
 	/**
-	 * Forcibly end this process.
+	 * Forcibly end this process, and anything it has started.
 	 */
 	void kill() {
+		if (process == null) {
+			// Never got started.
+			return;
+		}
+		// Find the children now, since once the process has gone they are
+		// re-parented, and no longer its descendants.
+		List<ProcessHandle> descendants = process.descendants().collect(
+				Collectors.<ProcessHandle>toList());
+
 		runSwitch.release();
 		processOutput.close();
-		try {
-			process.exitValue();
-			return;
-		} catch (Exception e) {
-			// Nope just testing if it was already down
+		if (process.isAlive()) {
+			try {
+				processInput.write("quit();\n\n");
+				processInput.close();
+			} catch (IOException e1) {
+			}
+
+			processOutput.close();
+			if (process.isAlive()) {
+				process.destroy();
+			}
 		}
-		try {
-			processInput.write("quit();\n\n");
-			processInput.close();
-		} catch (IOException e1) {
+
+		for (ProcessHandle descendant : descendants) {
+			descendant.destroyForcibly();
 		}
+		if (configuration.newSession && !orphansWatched) {
+			OrphanReaper.watch(process.pid());
+			orphansWatched = true;
+		}
+	}
 
-		processOutput.close();
-		try {
-			process.exitValue();
-		} catch (Exception e) {
-			process.destroy();
+	/**
+	 * @return the memory used by this process and anything it has started (the
+	 * sum of their resident set sizes) in bytes, or -1 if it is not known.
+	 */
+	long getResidentSetSize() {
+		if (process == null || !process.isAlive()) {
+			return -1;
+		}
+		long total = ProcUtils.readResidentSetSize(process.pid());
+		if (total < 0) {
+			return -1;
 		}
+		for (ProcessHandle descendant : process.descendants().collect(
+				Collectors.<ProcessHandle>toList())) {
+			total += Math.max(ProcUtils.readResidentSetSize(descendant.pid()), 0);
+		}
+		return total;
 	}
 
 	@Override
 	protected void finalize() throws Throwable {
 		kill();
-		if (configuration.fileHandling) {
+		if (configuration.fileHandling && generatedFileDir != null) {
 			FileUtils.deleteDirectoryRecursive(generatedFileDir);
 		}
 
@@ -325,7 +1029,7 @@ class MaximaProcess {
 	 * @return a list of the files generated while executing the command, if any.
 	 */
 	List<File> filesGenerated() {
-		if (!configuration.fileHandling) {
+		if (!configuration.fileHandling || generatedFileDir == null) {
 			return new LinkedList<File>();
 		}
 		return FileUtils.listFiles(new File(generatedFileDir, "output"));
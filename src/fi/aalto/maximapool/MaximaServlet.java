@@ -2,31 +2,49 @@ package fi.aalto.maximapool;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
 import java.util.Calendar;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import fi.aalto.utils.HtmlUtils;
+import fi.aalto.utils.ProcUtils;
 import fi.aalto.utils.ReaderSucker;
 import fi.aalto.utils.StringUtils;
 
@@ -46,6 +64,20 @@ public class MaximaServlet extends HttpServlet {
 	 */
 	private final static long HEALTHCHECK_TIMEOUT = 10000;
 
+	/**
+	 * In streaming mode, the HTTP status has already been sent before we know
+	 * how the evaluation ends, so the output is followed by a final line
+	 * starting with this, then the status code that would otherwise have been
+	 * used (200 or 416).
+	 */
+	private final static String STREAM_STATUS_FRAME = "\nMAXIMAPOOL-STATUS: ";
+
+	/**
+	 * Request parameters may also be given as HTTP headers, with this prefix
+	 * on the name. This is mainly for raw-body requests.
+	 */
+	private final static String HEADER_PREFIX = "X-MaximaPool-";
+
 	/**
 	 * Manages the different pools of processes running the different version
 	 * of the Maxima code.
@@ -62,6 +94,169 @@ public class MaximaServlet extends HttpServlet {
 	 */
 	private String adminPassword;
 
+	/**
+	 * The password needed to register a preamble. The admin password, unless
+	 * preamble.password is set.
+	 */
+	private String preamblePassword;
+
+	/**
+	 * Runs the evaluation requests, so that the container's request threads
+	 * are released while Maxima works. A request only gets a thread once it
+	 * has a process, so there are no more of these than processes in use.
+	 */
+	private ExecutorService evaluationExecutor;
+
+	/**
+	 * Time (ms) after which the container gives up on an asynchronous request,
+	 * as a last resort if it has not been completed by then.
+	 */
+	private long asyncTimeout = 300000;
+
+	/**
+	 * The parameters of a request to evaluate something, gathered on the
+	 * request thread so that the evaluation thread does not need the request.
+	 */
+	private static class EvaluationRequest {
+		/** The Maxima commands to execute. */
+		String input;
+
+		/** If not null, the stream to read the commands from instead of input. */
+		InputStream rawInput;
+
+		/** The version of the Maxima code requested. */
+		String configurationName;
+
+		/** The hash of a registered preamble to evaluate before the input, or null. */
+		String preambleHash;
+
+		/** Limit in ms. */
+		long timeLimit;
+
+		/** URL that plot images will be served from. */
+		String plotUrlBase;
+
+		/** Whether to send the output as it is produced. */
+		boolean stream;
+
+		/** Time (ms) spent reading a raw body, if there was one. */
+		long uploadTime = -1;
+
+		/** Time (ms) spent waiting for a process, once known. */
+		long queueTime = -1;
+
+		/** Time (ms) spent evaluating the preamble, if there was one to evaluate. */
+		long preambleTime = -1;
+	}
+
+	/**
+	 * Work to be done by one of the evaluationExecutor threads, to complete
+	 * a request that has been put into asynchronous mode.
+	 */
+	private interface AsyncTask {
+		/**
+		 * @param asyncRequest the request. Use its claimResponse to get the
+		 * response, before writing anything.
+		 * @throws IOException
+		 */
+		void run(AsyncRequest asyncRequest) throws IOException;
+	}
+
+	/**
+	 * What to do with the body of a raw-body request, once it has all been
+	 * read by readBody.
+	 */
+	private interface BodyTask {
+		/**
+		 * @param body the body.
+		 */
+		void run(byte[] body);
+	}
+
+	/**
+	 * A request that has been put into asynchronous mode. The response is
+	 * sent either by the work for the request, or by the container timing it
+	 * out, whichever claims it first.
+	 */
+	private class AsyncRequest implements AsyncListener {
+		/** The context from startAsync. */
+		private final AsyncContext asyncContext;
+
+		/** The thread that has claimed the response, or null. */
+		private final AtomicReference<Thread> owner = new AtomicReference<Thread>();
+
+		/** Released once the response has been completed. */
+		private final CountDownLatch completed = new CountDownLatch(1);
+
+		/**
+		 * Constructor.
+		 * @param asyncContext the context from startAsync.
+		 */
+		AsyncRequest(AsyncContext asyncContext) {
+			this.asyncContext = asyncContext;
+		}
+
+		/**
+		 * Claim the response for the current thread. This must be done before
+		 * writing anything to it.
+		 * @return the response, or null if another thread has claimed it, in
+		 * which case nothing may be written.
+		 */
+		HttpServletResponse claimResponse() {
+			if (owner.compareAndSet(null, Thread.currentThread()) ||
+					owner.get() == Thread.currentThread()) {
+				return (HttpServletResponse) asyncContext.getResponse();
+			}
+			return null;
+		}
+
+		/**
+		 * @return whether the response has been claimed, for example because
+		 * the request has timed out.
+		 */
+		boolean isClaimed() {
+			return owner.get() != null;
+		}
+
+		/**
+		 * Complete the response, if the current thread has claimed it, or
+		 * nothing has.
+		 */
+		void complete() {
+			if (claimResponse() != null) {
+				asyncContext.complete();
+				completed.countDown();
+			}
+		}
+
+		public void onTimeout(AsyncEvent event) throws IOException {
+			HttpServletResponse response = claimResponse();
+			if (response != null) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+						"Timed out after " + asyncTimeout + " ms.");
+				complete();
+				return;
+			}
+
+			// The response is being sent. Let that finish, rather than the
+			// container recycling the response under it.
+			try {
+				completed.await(asyncTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void onComplete(AsyncEvent event) {
+		}
+
+		public void onError(AsyncEvent event) {
+		}
+
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
+
 	@Override
 	public void init() throws ServletException {
 		super.init();
@@ -81,6 +276,25 @@ public class MaximaServlet extends HttpServlet {
 		if (adminPassword == null) {
 			throw new ServletException("Admin password not set.");
 		}
+		// Each preamble in use gets processes of its own, so registering one
+		// is not open to everyone.
+		preamblePassword = properties.getProperty("preamble.password", adminPassword);
+
+		// Requests wait for a process without a thread (see doProcess), so the
+		// evaluation threads are bounded by the processes in use, and the
+		// executor itself need not be.
+		asyncTimeout = Long.parseLong(properties.getProperty("evaluation.async.timeout", "" + asyncTimeout));
+		evaluationExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+				60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+			private final AtomicLong threadCount = new AtomicLong();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "MaximaPool-evaluation-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 
 		File directoryRoot = new File(properties.getProperty("directory.root", ""));
 		if (!directoryRoot.isDirectory()) {
@@ -116,10 +330,13 @@ public class MaximaServlet extends HttpServlet {
 				poolCoordinator.startConfiguration(entry.getKey());
 			}
 		}
+		poolCoordinator.warmUp();
+		poolCoordinator.watchConfigurations();
 	}
 
 	@Override
 	public void destroy() {
+		evaluationExecutor.shutdownNow();
 		poolCoordinator.destroy();
 		super.destroy();
 	}
@@ -137,6 +354,12 @@ public class MaximaServlet extends HttpServlet {
 			} else if ("2".equals(healthcheck)) {
 				doHealthcheckHighLevel(request, response);
 
+			} else if (request.getParameter("ready") != null) {
+				doReadiness(response);
+
+			} else if (request.getParameter("metrics") != null) {
+				doMetrics(response);
+
 			} else {
 				doStatus(request, response);
 			}
@@ -152,16 +375,33 @@ public class MaximaServlet extends HttpServlet {
 			throws ServletException, IOException {
 		request.setCharacterEncoding("UTF-8");
 		try {
-			if (request.getParameter("input") != null) {
+			if (getRequestValue(request, "session") != null) {
+				doSession(request, response);
+				return;
+			}
+
+			if (isRawInput(request) || request.getParameter("input") != null) {
 				doProcess(request, response);
 				return;
 			}
 
+			if (request.getParameter("registerpreamble") != null) {
+				if (!preamblePassword.equals(request.getParameter("password"))) {
+					response.sendError(HttpServletResponse.SC_FORBIDDEN,
+							"Registering a preamble needs the password.");
+					return;
+				}
+				doRegisterPreamble(request, response);
+				return;
+			}
+
 			if (checkAdminPassword(request)) {
 				if (request.getParameter("start") != null) {
 					doStartPool(request);
 				} else if (request.getParameter("stop") != null) {
 					doStopPool(request);
+				} else if (request.getParameter("roll") != null) {
+					doRollPool(request);
 				} else if (request.getParameter("scan") != null) {
 					doScanConfigurations(request);
 				}
@@ -175,21 +415,266 @@ public class MaximaServlet extends HttpServlet {
 
 	/**
 	 * Process a request that asks Maxima to calculate something.
+	 *
+	 * The request is put into asynchronous mode, and waits for a process
+	 * without holding a thread. Once it has one, the evaluation is handed to
+	 * evaluationExecutor, which completes the response.
+	 *
+	 * The input is normally the input parameter of a form post. For a raw-body
+	 * request (see isRawInput) the body is the input. It is read in full,
+	 * without being decoded, before a process is asked for, so that a slow
+	 * upload does not hold a process or use up its time limit.
 	 * @param request the request.
 	 * @param response the response to send.
 	 * @throws IOException
 	 */
 	private void doProcess(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		response.setCharacterEncoding("UTF-8");
-		String theInput = request.getParameter("input");
-		String configurationName = request.getParameter("version");
-		long timeLimit = getRequestLong(request,"timeout", 3000);
-		String plotUrlBase = getRequestString(request,"ploturlbase", "");
+		final EvaluationRequest evaluation = new EvaluationRequest();
+		evaluation.input = request.getParameter("input");
+		evaluation.configurationName = getRequestValue(request, "version");
+		evaluation.preambleHash = getRequestValue(request, "preamble");
+		evaluation.timeLimit = getRequestLong(request,"timeout", 3000);
+		evaluation.plotUrlBase = getRequestString(request,"ploturlbase", "");
+		evaluation.stream = "1".equals(getRequestValue(request, "stream"));
+
+		if (evaluation.preambleHash != null && !poolCoordinator.hasPreamble(evaluation.preambleHash)) {
+			// Tell the client to register it again.
+			response.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Unknown preamble " + evaluation.preambleHash);
+			return;
+		}
+
+		final AsyncRequest asyncRequest = startAsync(request, response);
+		if (!isRawInput(request)) {
+			requestProcess(evaluation, asyncRequest);
+			return;
+		}
+
+		final long uploadStart = System.currentTimeMillis();
+		readBody(request, asyncRequest, new BodyTask() {
+			public void run(byte[] body) {
+				evaluation.uploadTime = System.currentTimeMillis() - uploadStart;
+				evaluation.rawInput = new ByteArrayInputStream(body);
+				requestProcess(evaluation, asyncRequest);
+			}
+		});
+	}
+
+	/**
+	 * Helper used by doProcess. Ask for a process for an evaluation, and hand
+	 * the evaluation to evaluationExecutor once there is one.
+	 * @param evaluation what to evaluate.
+	 * @param asyncRequest the request.
+	 */
+	private void requestProcess(final EvaluationRequest evaluation, final AsyncRequest asyncRequest) {
+		if (asyncRequest.isClaimed()) {
+			// Timed out already.
+			return;
+		}
+
+		final long queueStart = System.currentTimeMillis();
+		try {
+			poolCoordinator.getProcessAsync(evaluation.configurationName, evaluation.preambleHash,
+					new ProcessPool.ProcessWaiter() {
+				public boolean isWaiting() {
+					return !asyncRequest.isClaimed();
+				}
+
+				public void processReady(final MaximaProcess maximaProcess) {
+					evaluation.queueTime = System.currentTimeMillis() - queueStart;
+					boolean accepted = execute(asyncRequest, new AsyncTask() {
+						public void run(AsyncRequest asyncRequest) throws IOException {
+							try {
+								if (asyncRequest.isClaimed()) {
+									// Timed out before it could start.
+									maximaProcess.kill();
+								} else if (evaluation.stream) {
+									evaluateStreaming(evaluation, maximaProcess, asyncRequest);
+								} else {
+									evaluate(evaluation, maximaProcess, asyncRequest);
+								}
+							} finally {
+								poolCoordinator.notifyProcessFinishedWith(maximaProcess);
+							}
+						}
+					});
+					if (!accepted) {
+						maximaProcess.kill();
+						poolCoordinator.notifyProcessFinishedWith(maximaProcess);
+					}
+				}
+
+				public void failed(final RuntimeException e) {
+					execute(asyncRequest, new AsyncTask() {
+						public void run(AsyncRequest asyncRequest) {
+							throw e;
+						}
+					});
+				}
+			});
+		} catch (RuntimeException e) {
+			sendFailure(asyncRequest, e);
+			asyncRequest.complete();
+		}
+	}
+
+	/**
+	 * Read the whole body of a raw-body request, as it arrives, without
+	 * holding a thread. The request must be in asynchronous mode. If reading
+	 * fails, the request is answered with the error.
+	 * @param request the request.
+	 * @param asyncRequest the request in asynchronous mode.
+	 * @param task what to do with the body. It is called on a container thread.
+	 * @throws IOException
+	 */
+	private void readBody(HttpServletRequest request, final AsyncRequest asyncRequest,
+			final BodyTask task) throws IOException {
+		final ServletInputStream in = request.getInputStream();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		in.setReadListener(new ReadListener() {
+			private final byte[] buffer = new byte[8192];
+
+			public void onDataAvailable() throws IOException {
+				while (in.isReady()) {
+					int count = in.read(buffer);
+					if (count < 0) {
+						return;
+					}
+					body.write(buffer, 0, count);
+				}
+			}
+
+			public void onAllDataRead() {
+				task.run(body.toByteArray());
+			}
+
+			public void onError(Throwable t) {
+				sendFailure(asyncRequest, new IOException("Failed to read the request body.", t));
+				asyncRequest.complete();
+			}
+		});
+	}
+
+	/**
+	 * Put a request into asynchronous mode.
+	 * @param request the request.
+	 * @param response the response to send.
+	 * @return the request.
+	 */
+	private AsyncRequest startAsync(HttpServletRequest request, HttpServletResponse response) {
+		AsyncContext asyncContext = request.startAsync(request, response);
+		AsyncRequest asyncRequest = new AsyncRequest(asyncContext);
+		// MaximaProcess enforces the time limits on evaluation. This is only a
+		// last resort, for example for a request left waiting for a process.
+		asyncContext.setTimeout(asyncTimeout);
+		asyncContext.addListener(asyncRequest);
+		return asyncRequest;
+	}
+
+	/**
+	 * Put a request into asynchronous mode, and hand the rest of the work to
+	 * evaluationExecutor, which completes the response.
+	 * @param request the request.
+	 * @param response the response to send.
+	 * @param task the work to do.
+	 */
+	private void runAsync(HttpServletRequest request, HttpServletResponse response, AsyncTask task) {
+		execute(startAsync(request, response), task);
+	}
+
+	/**
+	 * Hand the work for an asynchronous request to evaluationExecutor, which
+	 * completes the response.
+	 * @param asyncRequest the request.
+	 * @param task the work to do.
+	 * @return false if the executor has been shut down, in which case the
+	 * request has been answered with 503.
+	 */
+	private boolean execute(final AsyncRequest asyncRequest, final AsyncTask task) {
+		try {
+			evaluationExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run(asyncRequest);
+					} catch (Exception e) {
+						sendFailure(asyncRequest, e);
+					} finally {
+						asyncRequest.complete();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			sendFailure(asyncRequest, new PoolUnavailableException("The server is shutting down."));
+			asyncRequest.complete();
+			return false;
+		}
+	}
+
+	/**
+	 * Answer an asynchronous request with an error, unless its response has
+	 * been claimed by another thread: 503 if no process can be had, and the
+	 * error page otherwise.
+	 * @param asyncRequest the request.
+	 * @param e what went wrong.
+	 */
+	private void sendFailure(AsyncRequest asyncRequest, Exception e) {
+		HttpServletResponse response = asyncRequest.claimResponse();
+		if (response == null) {
+			return;
+		}
+		try {
+			if (e instanceof PoolUnavailableException) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+			} else {
+				HtmlUtils.sendErrorPage(response, e);
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Do the evaluation for doProcess, and send the output as the response.
+	 * This is called from one of the evaluationExecutor threads.
+	 * @param evaluation what to evaluate.
+	 * @param maximaProcess the process to use.
+	 * @param asyncRequest the request.
+	 * @throws IOException
+	 */
+	private void evaluate(EvaluationRequest evaluation, MaximaProcess maximaProcess,
+			AsyncRequest asyncRequest) throws IOException {
 
 		// NOTE! the obvious lack of input sanity checks... so think where you
 		// use this.
-		MaximaProcess maximaProcess = poolCoordinator.getProcess(configurationName);
-		if (maximaProcess.doAndDie(theInput, timeLimit, plotUrlBase)) {
+		boolean finished = runEvaluation(evaluation, maximaProcess, null);
+
+		// The output is copied as the bytes Maxima wrote, which are UTF-8.
+		// Any zip is built in memory before claiming the response, and so that
+		// the time it takes can go in the headers.
+		ByteArrayOutputStream zipBytes = null;
+		long zipTime = -1;
+		if (maximaProcess.filesGenerated().size() > 0) {
+			long zipStart = System.currentTimeMillis();
+			zipBytes = new ByteArrayOutputStream();
+			ZipOutputStream zos = new ZipOutputStream(zipBytes);
+
+			ZipEntry z = new ZipEntry("OUTPUT");
+			zos.putNextEntry(z);
+			maximaProcess.writeOutput(zos);
+			zos.closeEntry();
+			maximaProcess.addGeneratedFilesToZip(zos);
+			zos.finish();
+			zipTime = System.currentTimeMillis() - zipStart;
+		}
+
+		HttpServletResponse response = asyncRequest.claimResponse();
+		if (response == null) {
+			// Timed out.
+			return;
+		}
+		if (finished) {
 			response.setStatus(HttpServletResponse.SC_OK);
 		} else {
 			// Send a specific message to the STACK question type that the CAS
@@ -201,26 +686,270 @@ public class MaximaServlet extends HttpServlet {
 			// to singnal this case to STACK.
 			response.setStatus(416);
 		}
+		addUsageHeaders(maximaProcess, response);
 
-		String out = maximaProcess.getOutput();
-
-		if (maximaProcess.filesGenerated().size() > 0) {
+		if (zipBytes != null) {
+			response.setHeader("Server-Timing", getServerTiming(evaluation, maximaProcess, zipTime));
 			response.setContentType("application/zip");
-			ZipOutputStream zos = new ZipOutputStream(response.getOutputStream());
-
-			ZipEntry z = new ZipEntry("OUTPUT");
-			zos.putNextEntry(z);
-			zos.write(out.getBytes());
-			zos.closeEntry();
-			maximaProcess.addGeneratedFilesToZip(zos);
-			zos.finish();
+			response.setContentLength(zipBytes.size());
+			zipBytes.writeTo(response.getOutputStream());
 
 		} else {
+			response.setHeader("Server-Timing", getServerTiming(evaluation, maximaProcess, -1));
+			response.setContentType("text/plain; charset=UTF-8");
+			maximaProcess.writeOutput(response.getOutputStream());
+		}
+	}
+
+	/**
+	 * Add headers reporting the resources an evaluation used, where known:
+	 * X-MaximaPool-Wall-Time and X-MaximaPool-CPU-Time (ms), and
+	 * X-MaximaPool-Peak-Memory (bytes).
+	 * @param maximaProcess the process that did the evaluation.
+	 * @param response the response, which must not have been committed.
+	 */
+	private void addUsageHeaders(MaximaProcess maximaProcess, HttpServletResponse response) {
+		if (maximaProcess.getEvaluationTime() >= 0) {
+			response.setHeader("X-MaximaPool-Wall-Time", "" + maximaProcess.getEvaluationTime());
+		}
+		if (maximaProcess.getEvaluationCpuTime() >= 0) {
+			response.setHeader("X-MaximaPool-CPU-Time", "" + maximaProcess.getEvaluationCpuTime());
+		}
+		if (maximaProcess.getEvaluationPeakMemory() >= 0) {
+			response.setHeader("X-MaximaPool-Peak-Memory", "" + maximaProcess.getEvaluationPeakMemory());
+		}
+	}
+
+	/**
+	 * Build the value of the Server-Timing header, so that clients can see
+	 * where the time for a request went: reading a raw body (upload), waiting
+	 * for a process (queue),
+	 * evaluating the preamble, setting up the directories for generated files
+	 * (setup), Maxima evaluating the input (eval), and building the zip of
+	 * generated files. Phases that did not happen are left out.
+	 * @param evaluation the request.
+	 * @param maximaProcess the process that did the evaluation.
+	 * @param zipTime the time (ms) taken to build the zip, or -1.
+	 * @return the header value.
+	 */
+	private String getServerTiming(EvaluationRequest evaluation, MaximaProcess maximaProcess, long zipTime) {
+		StringBuffer timing = new StringBuffer(100);
+		appendServerTiming(timing, "upload", evaluation.uploadTime);
+		appendServerTiming(timing, "queue", evaluation.queueTime);
+		appendServerTiming(timing, "preamble", evaluation.preambleTime);
+		appendServerTiming(timing, "setup", maximaProcess.getFileSetupTime());
+		appendServerTiming(timing, "eval", maximaProcess.getEvaluationTime());
+		appendServerTiming(timing, "zip", zipTime);
+		return timing.toString();
+	}
+
+	/**
+	 * Helper used by getServerTiming.
+	 * @param timing the header value so far.
+	 * @param name the name of the phase.
+	 * @param duration its duration (ms), or -1 to leave it out.
+	 */
+	private void appendServerTiming(StringBuffer timing, String name, long duration) {
+		if (duration < 0) {
+			return;
+		}
+		if (timing.length() > 0) {
+			timing.append(", ");
+		}
+		timing.append(name + ";dur=" + duration);
+	}
+
+	/**
+	 * Do the evaluation for doProcess in streaming mode. The output is sent to
+	 * the client as Maxima produces it, followed by STREAM_STATUS_FRAME.
+	 * Generated files are not sent, so this mode is only useful for plots when
+	 * the client can read the files from a shared file system.
+	 * This is called from one of the evaluationExecutor threads.
+	 * @param evaluation what to evaluate.
+	 * @param maximaProcess the process to use.
+	 * @param asyncRequest the request.
+	 * @throws IOException
+	 */
+	private void evaluateStreaming(EvaluationRequest evaluation, MaximaProcess maximaProcess,
+			AsyncRequest asyncRequest) throws IOException {
+
+		HttpServletResponse response = asyncRequest.claimResponse();
+		if (response == null) {
+			// Timed out.
+			maximaProcess.kill();
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain; charset=UTF-8");
+		OutputStream out = response.getOutputStream();
+
+		int status = HttpServletResponse.SC_OK;
+		if (!runEvaluation(evaluation, maximaProcess, out)) {
+			status = 416;
+		}
+
+		out.write((STREAM_STATUS_FRAME + status + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * Helper used by evaluate and evaluateStreaming to do the actual work.
+	 * @param evaluation what to evaluate.
+	 * @param maximaProcess the process to use.
+	 * @param stream where to stream the output to, or null.
+	 * @return true if we did not timeout.
+	 */
+	private boolean runEvaluation(EvaluationRequest evaluation, MaximaProcess maximaProcess,
+			OutputStream stream) {
+		// The preamble and the input share the time limit.
+		long preambleStart = System.currentTimeMillis();
+		if (!poolCoordinator.applyPreamble(maximaProcess, evaluation.preambleHash, evaluation.timeLimit)) {
+			return false;
+		}
+		long preambleTime = System.currentTimeMillis() - preambleStart;
+		if (evaluation.preambleHash != null) {
+			evaluation.preambleTime = preambleTime;
+		}
+		return maximaProcess.doAndDie(evaluation.input, evaluation.rawInput,
+				evaluation.timeLimit - preambleTime, evaluation.plotUrlBase, stream);
+	}
+
+	/**
+	 * Process a request about a session. A session keeps one process for a
+	 * sequence of evaluations, so later input can use what earlier input set up.
+	 *  - session=open starts a session, and sends back its handle.
+	 *  - session=handle with input evaluates the input in that session, and
+	 *    sends back just the output from that input.
+	 *  - session=handle with close=1 ends the session.
+	 * If the evaluation times out, 416 is sent with the partial output, as for
+	 * doProcess. The session is kept if the process can be interrupted (see
+	 * interrupt.grace), and closed otherwise. Generated files are not sent back, so plots are only
+	 * useful if the client can read them from a shared file system.
+	 * @param request the request.
+	 * @param response the response to send.
+	 * @throws IOException
+	 */
+	private void doSession(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setCharacterEncoding("UTF-8");
+		String handle = getRequestValue(request, "session");
+
+		if ("open".equals(handle)) {
+			final String configurationName = getRequestValue(request, "version");
+			final String plotUrlBase = getRequestString(request, "ploturlbase", "");
+			runAsync(request, response, new AsyncTask() {
+				public void run(AsyncRequest asyncRequest) throws IOException {
+					MaximaSession session = poolCoordinator.openSession(configurationName, plotUrlBase);
+					HttpServletResponse asyncResponse = asyncRequest.claimResponse();
+					if (asyncResponse == null) {
+						// Timed out, so the client does not know the handle.
+						if (session != null) {
+							poolCoordinator.closeSession(session);
+						}
+						return;
+					}
+					if (session == null) {
+						asyncResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+								"Too many open sessions");
+						return;
+					}
+					asyncResponse.setStatus(HttpServletResponse.SC_OK);
+					asyncResponse.setContentType("text/plain");
+					asyncResponse.getWriter().write(session.handle);
+				}
+			});
+			return;
+		}
+
+		final MaximaSession session = poolCoordinator.getSession(handle);
+		if (session == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown session " + handle);
+			return;
+		}
+
+		if ("1".equals(getRequestValue(request, "close"))) {
+			poolCoordinator.closeSession(session);
+			response.setStatus(HttpServletResponse.SC_OK);
 			response.setContentType("text/plain");
-			response.getWriter().write(out);
+			response.getWriter().write("closed");
+			return;
 		}
 
-		poolCoordinator.notifyProcessFinishedWith(maximaProcess);
+		final String input = request.getParameter("input");
+		final long timeLimit = getRequestLong(request, "timeout", 3000);
+		if (!isRawInput(request)) {
+			runAsync(request, response, new AsyncTask() {
+				public void run(AsyncRequest asyncRequest) throws IOException {
+					evaluateInSession(session, input, timeLimit, asyncRequest);
+				}
+			});
+			return;
+		}
+
+		final AsyncRequest asyncRequest = startAsync(request, response);
+		readBody(request, asyncRequest, new BodyTask() {
+			public void run(final byte[] body) {
+				execute(asyncRequest, new AsyncTask() {
+					public void run(AsyncRequest asyncRequest) throws IOException {
+						evaluateInSession(session, new String(body, StandardCharsets.UTF_8),
+								timeLimit, asyncRequest);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Do the evaluation for doSession, and send the output as the response.
+	 * This is called from one of the evaluationExecutor threads.
+	 * @param session the session.
+	 * @param input the Maxima commands to execute.
+	 * @param timeLimit limit in ms.
+	 * @param asyncRequest the request.
+	 * @throws IOException
+	 */
+	private void evaluateInSession(MaximaSession session, String input, long timeLimit,
+			AsyncRequest asyncRequest) throws IOException {
+		HttpServletResponse response = asyncRequest.claimResponse();
+		if (response == null) {
+			// Timed out.
+			return;
+		}
+		if (input == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No input");
+			return;
+		}
+
+		synchronized (session) {
+			if (session.isClosed()) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown session " + session.handle);
+				return;
+			}
+
+			boolean finished = session.evaluate(input, timeLimit);
+			if (!finished) {
+				// Interrupt or close before writing, so the partial output ends
+				// in the right place.
+				poolCoordinator.salvageSession(session);
+			}
+
+			// See evaluate for why 416.
+			response.setStatus(finished ? HttpServletResponse.SC_OK : 416);
+			response.setContentType("text/plain; charset=UTF-8");
+			session.process.writeOutput(response.getOutputStream());
+		}
+	}
+
+	/**
+	 * Register a preamble, and send back its hash as the response.
+	 * @param request the request.
+	 * @param response the response to send.
+	 * @throws IOException
+	 */
+	private void doRegisterPreamble(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String hash = poolCoordinator.registerPreamble(request.getParameter("registerpreamble"));
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain");
+		response.getWriter().write(hash);
 	}
 
 	/**
@@ -247,6 +976,18 @@ public class MaximaServlet extends HttpServlet {
 		poolCoordinator.stopConfiguration(configurationName);
 	}
 
+	/**
+	 * Process a request to switch a running pool to the configuration now on
+	 * disc, without interrupting service.
+	 * @param request the request.
+	 * @throws IOException
+	 */
+	private void doRollPool(HttpServletRequest request) throws ServletException, IOException {
+
+		String configurationName = request.getParameter("roll");
+		poolCoordinator.rollConfiguration(configurationName);
+	}
+
 	/**
 	 * Process a request to stop the pool for a particular version of the Maxima code.
 	 * @param request the request.
@@ -258,6 +999,38 @@ public class MaximaServlet extends HttpServlet {
 		poolCoordinator.scanConfigurations();
 	}
 
+	/**
+	 * Readiness check, for use by load balancers. Responds 200 once the pools
+	 * have been filled after start-up, and 503 before that.
+	 * @param response the response to send.
+	 * @throws IOException
+	 */
+	private void doReadiness(HttpServletResponse response) throws IOException {
+		response.setContentType("text/plain");
+		if (poolCoordinator.isReady()) {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().write("ready");
+		} else {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().write("not ready");
+		}
+	}
+
+	/**
+	 * Output metrics in the Prometheus text format, for monitoring systems.
+	 * @param response the response to send.
+	 * @throws IOException
+	 */
+	private void doMetrics(HttpServletResponse response) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain; version=0.0.4");
+		PrintWriter out = response.getWriter();
+		for (Map.Entry<String, String> entry : poolCoordinator.getMetrics().entrySet()) {
+			out.write(entry.getKey() + " " + entry.getValue() + "\n");
+		}
+		out.close();
+	}
+
 	/**
 	 * Display the current status of the servlet, with a form that can be used
 	 * for testing, and with controls to manage which pools are running.
@@ -298,12 +1071,25 @@ public class MaximaServlet extends HttpServlet {
 		HtmlUtils.writeHeading(out, "Running versions");
 
 		for (String configurationName : runningPools) {
+			ProcessConfiguration runningConfiguration =
+					poolCoordinator.getRunningProcessConfiguration(configurationName);
+			if (runningConfiguration == null) {
+				// Stopped since the list was made.
+				continue;
+			}
+
 			HtmlUtils.writeDivStart(out, "pool", configurationName);
 			HtmlUtils.writeSubHeading(out, "Pool performance - " + configurationName);
 			HtmlUtils.writeMapAsTable(out, poolCoordinator.getPoolStatus(configurationName));
 
-			if (!poolCoordinator.isConfigurationCurrent(configurationName)) {
-				HtmlUtils.writeWarning(out, "The configuration has changed on disc since this pool was started. You should probably stop and then re-start this pool.");
+			if (poolCoordinator.isRolling(configurationName)) {
+				HtmlUtils.writeWarning(out, "A new pool is starting with the configuration on disc. It will take over once it is ready.");
+			} else if (poolCoordinator.getProcessConfiguration(configurationName) == null) {
+				HtmlUtils.writeWarning(out, "The configuration has been removed from disc since this pool was started.");
+			} else if (!poolCoordinator.isConfigurationCurrent(configurationName)) {
+				HtmlUtils.writeWarning(out, "The configuration has changed on disc since this pool was started. Roll the pool to switch to the new configuration without interrupting service.");
+				HtmlUtils.writeActionButton(out, "roll", configurationName,
+						"Roll to the new configuration");
 			}
 
 			HtmlUtils.writeLink(out, "?healthcheck=2&version=" + configurationName,
@@ -314,7 +1100,7 @@ public class MaximaServlet extends HttpServlet {
 					"Stop this pool");
 
 			HtmlUtils.writeSubHeading(out, "Pool configuration - " + configurationName);
-			HtmlUtils.writeMapAsTable(out, poolCoordinator.getProcessConfiguration(configurationName).describe());
+			HtmlUtils.writeMapAsTable(out, runningConfiguration.describe());
 			HtmlUtils.writeDivEnd(out);
 		}
 
@@ -421,11 +1207,10 @@ public class MaximaServlet extends HttpServlet {
 
 		Semaphore runSwitch = new Semaphore(1);
 
-		ReaderSucker output = new ReaderSucker(new BufferedReader(
-				new InputStreamReader(new BufferedInputStream(
-						process.getInputStream()))), runSwitch);
+		ReaderSucker output = new ReaderSucker(new BufferedInputStream(
+				process.getInputStream()), runSwitch);
 		OutputStreamWriter input = new OutputStreamWriter(new BufferedOutputStream(
-				process.getOutputStream()));
+				process.getOutputStream()), StandardCharsets.UTF_8);
 
 		String test = processConfig.processHasStartedOutput;
 
@@ -513,9 +1298,46 @@ public class MaximaServlet extends HttpServlet {
 			// Not possible to get memory usage on this system.
 		}
 
+		long availableMemory = ProcUtils.readAvailableMemory();
+		if (availableMemory >= 0) {
+			values.put("System memory available without swapping", StringUtils.formatBytes(availableMemory));
+		}
+
+		values.put("Evaluation threads busy", "" + ((ThreadPoolExecutor) evaluationExecutor).getActiveCount());
+
 		return values;
 	}
 
+	/**
+	 * Is this a request where the body is the Maxima input, rather than a form?
+	 * @param request HTTP request.
+	 * @return true if the body is text/plain or application/octet-stream.
+	 */
+	private boolean isRawInput(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		if (contentType == null) {
+			return false;
+		}
+		contentType = contentType.toLowerCase();
+		return contentType.startsWith("text/plain") ||
+				contentType.startsWith("application/octet-stream");
+	}
+
+	/**
+	 * Get a request parameter, either from the query string or form, or from
+	 * a header named HEADER_PREFIX + name.
+	 * @param request HTTP request.
+	 * @param name parameter name.
+	 * @return the value, or null if it is not present.
+	 */
+	private String getRequestValue(HttpServletRequest request, String name) {
+		String value = request.getParameter(name);
+		if (value == null) {
+			value = request.getHeader(HEADER_PREFIX + name);
+		}
+		return value;
+	}
+
 	/**
 	 * Get an optional string parameter from the request.
 	 * @param request HTTP request.
@@ -524,7 +1346,7 @@ public class MaximaServlet extends HttpServlet {
 	 * @return the requested value.
 	 */
 	private String getRequestString(HttpServletRequest request, String name, String defaultValue) {
-		String value = request.getParameter(name);
+		String value = getRequestValue(request, name);
 		if (value == null) {
 			return defaultValue;
 		}
@@ -540,7 +1362,7 @@ public class MaximaServlet extends HttpServlet {
 	 * @return the requested value.
 	 */
 	private long getRequestLong(HttpServletRequest request, String name, long defaultValue) {
-		String value = request.getParameter(name);
+		String value = getRequestValue(request, name);
 		if (value == null) {
 			return defaultValue;
 		}
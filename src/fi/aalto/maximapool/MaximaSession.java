@@ -0,0 +1,92 @@
+package fi.aalto.maximapool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A process that has been taken out of the pool and is kept for one client,
+ * so that it can evaluate several requests in turn, building up state.
+ *
+ * Callers must synchronize on the session while using its process, so that
+ * only one request is evaluated at a time.
+ */
+class MaximaSession {
+
+	/** The handle that identifies the session to the client. */
+	final String handle;
+
+	/** The name of the configuration the process uses. */
+	final String configurationName;
+
+	/** The process. */
+	final MaximaProcess process;
+
+	/** When the session was last used. (System.currentTimeMillis();) */
+	private volatile long lastUsed;
+
+	/**
+	 * Set once the session has been closed. This is not guarded by the lock on
+	 * the session, which is held for whole evaluations, so that closing it
+	 * (for example from the upkeep thread) never waits for one to finish.
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * Constructor.
+	 * @param handle the handle that identifies the session.
+	 * @param configurationName the configuration the process uses.
+	 * @param process the process.
+	 */
+	MaximaSession(String handle, String configurationName, MaximaProcess process) {
+		this.handle = handle;
+		this.configurationName = configurationName;
+		this.process = process;
+		touch();
+	}
+
+	/**
+	 * Evaluate some input in the session's process. Afterwards, the process
+	 * output is just the output from this input. The caller must hold the
+	 * lock on this session.
+	 * @param input the Maxima commands to execute.
+	 * @param timeout limit in ms.
+	 * @return true if the input was evaluated within the time limit.
+	 */
+	boolean evaluate(String input, long timeout) {
+		touch();
+		process.skipOutput();
+		boolean finished = process.evaluate(input, timeout);
+		touch();
+		return finished;
+	}
+
+	/**
+	 * Record that the session has just been used.
+	 */
+	void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param testTime time to consider as now.
+	 * @param idleTimeout the time (ms) a session may be left unused.
+	 * @return whether the session has been idle for too long.
+	 */
+	boolean isIdle(long testTime, long idleTimeout) {
+		return lastUsed + idleTimeout < testTime;
+	}
+
+	/**
+	 * Mark the session closed.
+	 * @return false if it was already closed.
+	 */
+	boolean markClosed() {
+		return closed.compareAndSet(false, true);
+	}
+
+	/**
+	 * @return whether the session has been closed.
+	 */
+	boolean isClosed() {
+		return closed.get();
+	}
+}
@@ -0,0 +1,130 @@
+package fi.aalto.maximapool;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.aalto.utils.ProcUtils;
+
+
+/**
+ * Finds and kills processes left behind by pool processes that have been
+ * killed, for example gnuplot started by a plot that timed out.
+ *
+ * This relies on the pool processes having been launched in their own session
+ * (see ProcessConfiguration.newSession). Children that outlive their parent are
+ * re-parented, so they are no longer found by ProcessHandle.descendants(), but
+ * they keep the session id, which is the pid of the dead pool process.
+ *
+ * Pids are reused, so a session is only reaped once its leader is gone, and
+ * it is forgotten as soon as another process is seen with that pid.
+ */
+class OrphanReaper {
+
+	/** Minimum time (ms) between scans of all the processes. */
+	private static final long REAP_INTERVAL = 5000;
+
+	/**
+	 * The session ids of pool processes that have been killed, with the start
+	 * time of each process (see ProcUtils.STAT_START_TIME), or -1 if it had
+	 * already gone.
+	 */
+	private static final Map<Long, Long> sessionIds = new HashMap<Long, Long>();
+
+	/** When reap() last scanned the processes. (System.currentTimeMillis();) */
+	private static long lastReapTime = 0;
+
+	/** Number of processes killed by reap(). */
+	private static final AtomicLong reapedCount = new AtomicLong();
+
+	/**
+	 * Remember a pool process that has been killed, so that anything left in
+	 * its session is killed by the next reap().
+	 * @param pid the pid of the process, which is also its session id.
+	 */
+	static synchronized void watch(long pid) {
+		if (ProcUtils.isAvailable()) {
+			sessionIds.put(pid, ProcUtils.getStatField(ProcUtils.readStat(pid), ProcUtils.STAT_START_TIME));
+		}
+	}
+
+	/**
+	 * Forget a session id, because a new process has been started with that
+	 * pid, so anything in its session now belongs to that process.
+	 * @param pid the pid of the new process.
+	 */
+	static synchronized void processStarted(long pid) {
+		sessionIds.remove(pid);
+	}
+
+	/**
+	 * Kill any process still running in the session of a pool process that
+	 * has been killed. Sessions found to be empty are forgotten. This does
+	 * nothing if it was last done less than REAP_INTERVAL ago.
+	 */
+	static void reap() {
+		Map<Long, Long> watched;
+		synchronized (OrphanReaper.class) {
+			long now = System.currentTimeMillis();
+			if (sessionIds.isEmpty() || now - lastReapTime < REAP_INTERVAL) {
+				return;
+			}
+			lastReapTime = now;
+			watched = new HashMap<Long, Long>(sessionIds);
+		}
+
+		// Look at each session leader first, which is cheap, and only scan
+		// all the processes if some session has lost its leader.
+		Set<Long> reused = new HashSet<Long>();
+		Set<Long> orphaned = new HashSet<Long>();
+		for (Map.Entry<Long, Long> entry : watched.entrySet()) {
+			String[] stat = ProcUtils.readStat(entry.getKey());
+			if (stat == null || "Z".equals(stat[0])) {
+				orphaned.add(entry.getKey());
+			} else if (entry.getValue() < 0 ||
+					ProcUtils.getStatField(stat, ProcUtils.STAT_START_TIME) != entry.getValue()) {
+				// Another process has been given the pid.
+				reused.add(entry.getKey());
+			}
+			// Otherwise the pool process is still on its way out.
+		}
+		synchronized (OrphanReaper.class) {
+			sessionIds.keySet().removeAll(reused);
+		}
+		if (orphaned.isEmpty()) {
+			return;
+		}
+
+		Set<Long> occupied = new HashSet<Long>();
+		for (long pid : ProcUtils.listProcessIds()) {
+			String[] stat = ProcUtils.readStat(pid);
+			if (stat == null || "Z".equals(stat[0])) {
+				// Gone, or already dead and waiting to be cleaned up.
+				continue;
+			}
+			long sessionId = ProcUtils.getStatField(stat, ProcUtils.STAT_SESSION);
+			if (!orphaned.contains(sessionId)) {
+				continue;
+			}
+			occupied.add(sessionId);
+			ProcessHandle orphan = ProcessHandle.of(pid).orElse(null);
+			if (orphan != null && orphan.destroyForcibly()) {
+				reapedCount.incrementAndGet();
+			}
+		}
+
+		synchronized (OrphanReaper.class) {
+			orphaned.removeAll(occupied);
+			sessionIds.keySet().removeAll(orphaned);
+		}
+	}
+
+	/**
+	 * @return the number of stray processes killed so far.
+	 */
+	static long getReapedCount() {
+		return reapedCount.get();
+	}
+}
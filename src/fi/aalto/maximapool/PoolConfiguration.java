@@ -3,10 +3,14 @@ package fi.aalto.maximapool;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
+import fi.aalto.utils.StringUtils;
+
 /**
  * Stores all the configuration for how the PoolCoordingtor should work.
  */
@@ -35,6 +39,24 @@ class PoolConfiguration {
 	 */
 	int startupLimit = 100;
 
+	/**
+	 * Whether to adjust the limit on processes starting up, between 1 and
+	 * startupLimit, according to how well the system is coping.
+	 */
+	boolean adaptiveStartupLimit = true;
+
+	/**
+	 * The limit on processes starting up is reduced when the load average per
+	 * processor is above this.
+	 */
+	double startupLoadThreshold = 1.0;
+
+	/**
+	 * The limit on processes starting up is reduced when processes are taking
+	 * this many times as long to start as they have done at best.
+	 */
+	double startupSlowdownThreshold = 2.0;
+
 	/**
 	 * Delay (ms) between runs of the maintenance tasks.
 	 */
@@ -51,6 +73,164 @@ class PoolConfiguration {
 	 */
 	double safetyMultiplier = 3.0;
 
+	/**
+	 * When a process is taken, and the number of processes ready or starting
+	 * in the pool drops below this fraction of the number needed, a batch of
+	 * processes is started straight away to make up the difference, rather
+	 * than waiting for maintenance.
+	 */
+	double refillLowWater = 0.5;
+
+	/**
+	 * How the number of processes each pool should have is decided: frequency
+	 * (from the demand and start-up time) or latency (by feedback from the time
+	 * requests wait for a process). See SizingPolicy.
+	 */
+	String sizingPolicy = "frequency";
+
+	/**
+	 * For the latency sizing policy, the longest time (ms) requests should wait
+	 * for a process, at sizingWaitPercentile.
+	 */
+	long sizingWaitTarget = 20;
+
+	/**
+	 * For the latency sizing policy, the percentile of the waits that is
+	 * compared with sizingWaitTarget.
+	 */
+	double sizingWaitPercentile = 95;
+
+	/**
+	 * For the latency sizing policy, time (ms) over which waits are gathered
+	 * before the target is adjusted.
+	 */
+	long sizingWindow = 10000;
+
+	/**
+	 * For the latency sizing policy, the target is adjusted early once this
+	 * many waits have been gathered.
+	 */
+	int sizingWindowSamples = 50;
+
+	/**
+	 * After start-up, the servlet only reports itself as ready once every running
+	 * pool has at least this fraction of its minimum number of processes.
+	 */
+	double readinessFraction = 0.5;
+
+	/**
+	 * Maximum number of registered preambles to remember. When more are
+	 * registered, the least recently used are forgotten.
+	 */
+	int preambleCacheSize = 50;
+
+	/**
+	 * Number of processes to keep ready for each preamble that is in use, per
+	 * configuration.
+	 */
+	int preambleProcesses = 2;
+
+	/**
+	 * Maximum number of sessions that may be open at once. Each session holds
+	 * a process out of the pools until it is closed.
+	 */
+	int sessionLimit = 10;
+
+	/**
+	 * Time (ms) a session may be left unused before it is closed automatically.
+	 */
+	long sessionIdleTimeout = 300000;
+
+	/**
+	 * Number of start-up failures in a row, for one pool, after which it stops
+	 * starting processes for a while, and requests to it fail straight away.
+	 */
+	int breakerFailureThreshold = 3;
+
+	/**
+	 * Time (ms) to wait before trying to start a process again, after the
+	 * circuit breaker trips. This doubles after each further failure.
+	 */
+	long breakerInitialBackoff = 1000;
+
+	/**
+	 * Upper limit (ms) on the time between attempts to start a process.
+	 */
+	long breakerMaximumBackoff = 60000;
+
+	/**
+	 * Upper limit (bytes) on the memory used by all the live processes: those
+	 * waiting in the pools, starting up, in use, in sessions and holding a
+	 * preamble, as estimated from their resident set sizes. 0 means no limit.
+	 */
+	long memoryBudget = 0;
+
+	/**
+	 * No more processes are started if that would leave less than this much
+	 * memory (bytes) available on the system, so that it does not start to
+	 * swap. 0 turns this check off. Needs /proc (Linux).
+	 */
+	long memoryReserve = 0;
+
+	/**
+	 * Time (ms) after which a pool that has had no requests is stopped, to
+	 * free its memory. 0 means never. The last running pool is never stopped.
+	 */
+	long idleStopTime = 0;
+
+	/**
+	 * Whether a request for a configuration that exists on disc, but whose
+	 * pool is not running, starts that pool, rather than being sent to the
+	 * closest running configuration.
+	 */
+	boolean lazyStart = true;
+
+	/**
+	 * Whether to watch directoryRoot for process configurations being added,
+	 * changed or removed, rather than waiting for someone to re-scan.
+	 */
+	boolean watchConfigurations = true;
+
+	/**
+	 * Time (ms) to wait for changes on disc to settle, before reading them.
+	 * Copying a new version into place creates many events.
+	 */
+	long watchSettleTime = 2000;
+
+	/**
+	 * Time (ms) after which a roll is abandoned if its new pool has not gained
+	 * a ready process.
+	 */
+	long rollTimeout = 300000;
+
+	/**
+	 * Periods for which more processes are known in advance to be needed,
+	 * such as exams. In order of start time.
+	 */
+	List<CapacityWindow> capacityWindows = new ArrayList<CapacityWindow>();
+
+	/**
+	 * Time (ms) before each of the capacityWindows opens that the pools are
+	 * filled to its levels.
+	 */
+	long scheduleLeadTime = 600000;
+
+	/**
+	 * The file, in directoryRoot, that what the pools have learned is saved in,
+	 * so that they can carry on from it after a restart. Empty to not save.
+	 */
+	String stateFileName = ".maximapool-state";
+
+	/**
+	 * Time (ms) between saves of the pool state. It is also saved on shut-down.
+	 */
+	long stateSaveInterval = 60000;
+
+	/**
+	 * Saved pool state older than this (ms) is ignored.
+	 */
+	long stateMaximumAge = 3600000;
+
 	/**
 	 * The configuration for the processes we create.
 	 */
@@ -67,12 +247,71 @@ class PoolConfiguration {
 				"size.max", "" + maximumAvailableProcesses));
 		startupLimit = Integer.parseInt(properties.getProperty(
 				"start.limit", "" + startupLimit));
+		adaptiveStartupLimit = Boolean.parseBoolean(properties.getProperty(
+				"start.adaptive", "" + adaptiveStartupLimit));
+		startupLoadThreshold = Double.parseDouble(properties.getProperty(
+				"start.adaptive.load", "" + startupLoadThreshold));
+		startupSlowdownThreshold = Double.parseDouble(properties.getProperty(
+				"start.adaptive.slowdown", "" + startupSlowdownThreshold));
 		maintenanceCycleTime = Long.parseLong(properties.getProperty(
 				"update.cycle", "500"));
 		movingAverageDataPoints = Integer.parseInt(properties.getProperty(
 				"adaptation.averages.length", "" + movingAverageDataPoints));
 		safetyMultiplier = Double.parseDouble(properties.getProperty(
 				"adaptation.safety.multiplier", "" + safetyMultiplier));
+		refillLowWater = Double.parseDouble(properties.getProperty(
+				"refill.lowwater", "" + refillLowWater));
+		sizingPolicy = properties.getProperty("sizing.policy", sizingPolicy).trim();
+		if (!"frequency".equals(sizingPolicy) && !"latency".equals(sizingPolicy)) {
+			throw new RuntimeException("Unknown sizing.policy " + sizingPolicy +
+					". It should be frequency or latency.");
+		}
+		sizingWaitTarget = Long.parseLong(properties.getProperty(
+				"sizing.wait.target", "" + sizingWaitTarget));
+		sizingWaitPercentile = Double.parseDouble(properties.getProperty(
+				"sizing.wait.percentile", "" + sizingWaitPercentile));
+		sizingWindow = Long.parseLong(properties.getProperty(
+				"sizing.window", "" + sizingWindow));
+		sizingWindowSamples = Integer.parseInt(properties.getProperty(
+				"sizing.window.samples", "" + sizingWindowSamples));
+		readinessFraction = Double.parseDouble(properties.getProperty(
+				"ready.fraction", "" + readinessFraction));
+		preambleCacheSize = Integer.parseInt(properties.getProperty(
+				"preamble.cache.size", "" + preambleCacheSize));
+		preambleProcesses = Integer.parseInt(properties.getProperty(
+				"preamble.processes", "" + preambleProcesses));
+		sessionLimit = Integer.parseInt(properties.getProperty(
+				"session.max", "" + sessionLimit));
+		sessionIdleTimeout = Long.parseLong(properties.getProperty(
+				"session.ttl", "" + sessionIdleTimeout));
+		breakerFailureThreshold = Integer.parseInt(properties.getProperty(
+				"breaker.failures", "" + breakerFailureThreshold));
+		breakerInitialBackoff = Long.parseLong(properties.getProperty(
+				"breaker.backoff.initial", "" + breakerInitialBackoff));
+		breakerMaximumBackoff = Long.parseLong(properties.getProperty(
+				"breaker.backoff.max", "" + breakerMaximumBackoff));
+		memoryBudget = Long.parseLong(properties.getProperty(
+				"memory.budget", "" + memoryBudget / (1024 * 1024))) * 1024 * 1024;
+		memoryReserve = Long.parseLong(properties.getProperty(
+				"memory.reserve", "" + memoryReserve / (1024 * 1024))) * 1024 * 1024;
+		idleStopTime = Long.parseLong(properties.getProperty(
+				"idle.stop", "" + idleStopTime));
+		lazyStart = Boolean.parseBoolean(properties.getProperty(
+				"lazy.start", "" + lazyStart));
+		watchConfigurations = Boolean.parseBoolean(properties.getProperty(
+				"watch.configurations", "" + watchConfigurations));
+		watchSettleTime = Long.parseLong(properties.getProperty(
+				"watch.settle", "" + watchSettleTime));
+		rollTimeout = Long.parseLong(properties.getProperty(
+				"roll.timeout", "" + rollTimeout));
+		scheduleLeadTime = Long.parseLong(properties.getProperty(
+				"schedule.lead", "" + scheduleLeadTime));
+		capacityWindows = CapacityWindow.loadProperties(properties);
+		stateFileName = properties.getProperty("state.file", stateFileName).trim();
+		stateSaveInterval = Long.parseLong(properties.getProperty(
+				"state.save.interval", "" + stateSaveInterval));
+		stateMaximumAge = Long.parseLong(properties.getProperty(
+				"state.max.age", "" + stateMaximumAge));
 	}
 
 	/**
@@ -88,9 +327,40 @@ class PoolConfiguration {
 		values.put("Min pool size", "" + minimumAvailableProcesses);
 		values.put("Max pool size", "" + maximumAvailableProcesses);
 		values.put("Limit on number of processes starting up", "" + startupLimit);
+		values.put("Adapt the start-up limit", adaptiveStartupLimit ? "Yes, reducing it above load " +
+				startupLoadThreshold + " per processor, or start-up " + startupSlowdownThreshold +
+				" times slower than at best" : "No");
 		values.put("Maintenance cycle time", maintenanceCycleTime + " ms");
 		values.put("Number of data points for averages", "" + movingAverageDataPoints);
 		values.put("Pool size safety multiplier", "" + safetyMultiplier);
+		values.put("Refill straight away below", refillLowWater + " of the processes needed");
+		values.put("Pool sizing policy", "latency".equals(sizingPolicy) ? "Latency: p" +
+				sizingWaitPercentile + " wait at most " + sizingWaitTarget + " ms, adjusted every " +
+				sizingWindow + " ms or " + sizingWindowSamples + " requests" :
+				"Frequency: demand x start-up time x safety multiplier");
+		values.put("Fraction of min pool size needed to be ready", "" + readinessFraction);
+		values.put("Max number of preambles", "" + preambleCacheSize);
+		values.put("Processes kept ready per preamble", "" + preambleProcesses);
+		values.put("Max number of open sessions", "" + sessionLimit);
+		values.put("Idle session timeout", sessionIdleTimeout + " ms");
+		values.put("Start-up failures before backing off", "" + breakerFailureThreshold);
+		values.put("Start-up back-off", breakerInitialBackoff + " ms, doubling up to " +
+				breakerMaximumBackoff + " ms");
+		values.put("Memory budget for processes", memoryBudget > 0 ?
+				StringUtils.formatBytes(memoryBudget) : "No limit");
+		values.put("Memory kept free", memoryReserve > 0 ?
+				StringUtils.formatBytes(memoryReserve) : "Not checked");
+		values.put("Stop pools with no requests for", idleStopTime > 0 ? idleStopTime + " ms" : "Never");
+		values.put("Start pools on demand", lazyStart ? "Yes" : "No");
+		values.put("Watch for configuration changes", watchConfigurations ?
+				"Yes, reading them after " + watchSettleTime + " ms" : "No");
+		for (CapacityWindow window : capacityWindows) {
+			values.put("Scheduled capacity " + window.name, window.describe());
+		}
+		values.put("Fill the pools for scheduled capacity", scheduleLeadTime + " ms before it starts");
+		values.put("Save the pool state", stateFileName.length() > 0 ? "To " + stateFileName +
+				" every " + stateSaveInterval + " ms, using it after a restart if less than " +
+				stateMaximumAge + " ms old" : "No");
 
 		return values;
 	}
@@ -99,37 +369,75 @@ class PoolConfiguration {
 	 * Look on disc for all the child directories of directoryRoot, to find the
 	 * processes configurations that we can run.
 	 */
-	void scanAvailableProcessConfigurations() {
+	synchronized void scanAvailableProcessConfigurations() {
 		Map<String, ProcessConfiguration> configurations = new LinkedHashMap<String, ProcessConfiguration>();
 		for (File subdirectory : directoryRoot.listFiles()) {
-			if (!subdirectory.isDirectory()) {
-				continue;
-			}
-			File configFile = new File(subdirectory, "process.conf");
-			if (!configFile.isFile()) {
-				continue;
-			}
-
-			Properties properties = new Properties();
-			try {
-				FileReader reader = new FileReader(configFile);
-				properties.load(reader);
-				reader.close();
-			} catch (IOException ioe) {
-				continue;
-			}
-
-			if (!subdirectory.getName().equals(properties.getProperty("name"))) {
-				continue;
+			ProcessConfiguration configuration = readProcessConfiguration(subdirectory);
+			if (configuration != null) {
+				configurations.put(subdirectory.getName(), configuration);
 			}
-
-			ProcessConfiguration configuration = new ProcessConfiguration();
-			configuration.loadProperties(properties);
-			configurations.put(subdirectory.getName(), configuration);
 		}
 
 		// It is intentional that we build the complete new array, and then swap
 		// it into place in a single operation.
 		processConfigurations = configurations;
 	}
+
+	/**
+	 * Re-read the process configuration in one child directory of
+	 * directoryRoot, leaving the others alone.
+	 * @param configurationName the name of the directory.
+	 * @return the configuration now on disc, or null if there no longer is a
+	 * valid one.
+	 */
+	synchronized ProcessConfiguration updateProcessConfiguration(String configurationName) {
+		ProcessConfiguration configuration = readProcessConfiguration(
+				new File(directoryRoot, configurationName));
+
+		// As above, build the new array, then swap it into place.
+		Map<String, ProcessConfiguration> configurations =
+				new LinkedHashMap<String, ProcessConfiguration>(processConfigurations);
+		if (configuration == null) {
+			configurations.remove(configurationName);
+		} else {
+			configurations.put(configurationName, configuration);
+		}
+		processConfigurations = configurations;
+
+		return configuration;
+	}
+
+	/**
+	 * Read the process.conf in a directory.
+	 * @param subdirectory a child directory of directoryRoot.
+	 * @return the configuration, or null if the directory does not contain a
+	 * valid one.
+	 */
+	private ProcessConfiguration readProcessConfiguration(File subdirectory) {
+		if (!subdirectory.isDirectory()) {
+			return null;
+		}
+		File configFile = new File(subdirectory, "process.conf");
+		if (!configFile.isFile()) {
+			return null;
+		}
+
+		Properties properties = new Properties();
+		try {
+			FileReader reader = new FileReader(configFile);
+			properties.load(reader);
+			reader.close();
+		} catch (IOException ioe) {
+			return null;
+		}
+
+		if (!subdirectory.getName().equals(properties.getProperty("name"))) {
+			return null;
+		}
+
+		ProcessConfiguration configuration = new ProcessConfiguration();
+		configuration.configurationDirectory = subdirectory;
+		configuration.loadProperties(properties);
+		return configuration;
+	}
 }
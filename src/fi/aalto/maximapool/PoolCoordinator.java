@@ -1,14 +1,29 @@
 package fi.aalto.maximapool;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import fi.aalto.utils.ProcUtils;
+import fi.aalto.utils.StringUtils;
 import fi.aalto.utils.UpkeepThread;
 
 
@@ -32,20 +47,78 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	private ConcurrentHashMap<String, ProcessPool> processPools =
 			new ConcurrentHashMap<String, ProcessPool>();
 
+	/**
+	 * Builds the saved images for configurations that use them.
+	 */
+	private ImageBuilder imageBuilder = new ImageBuilder();
+
+	/**
+	 * The registered preambles, and processes that have evaluated them.
+	 */
+	private PreambleCache preambleCache;
+
+	/**
+	 * A pool being warmed up to replace a running pool whose configuration
+	 * has changed on disc.
+	 */
+	private static class PendingRoll {
+		/** The new pool. */
+		final ProcessPool pool;
+
+		/** The number of ready processes it needs before it takes over. */
+		final int target;
+
+		/** The most ready processes it has had so far. */
+		int mostReady = 0;
+
+		/** When it last gained a ready process. (System.currentTimeMillis();) */
+		long progressTime = System.currentTimeMillis();
+
+		PendingRoll(ProcessPool pool, int target) {
+			this.pool = pool;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Pools being warmed up to replace running pools, keyed by configuration name.
+	 */
+	private ConcurrentHashMap<String, PendingRoll> pendingRolls =
+			new ConcurrentHashMap<String, PendingRoll>();
+
+	/**
+	 * Pools that have been replaced, and are waiting for any requests still
+	 * waiting for them to move to the new pool, before being destroyed.
+	 */
+	private List<ProcessPool> drainingPools = Collections
+			.synchronizedList(new LinkedList<ProcessPool>());
+
+	/**
+	 * Watches for configurations changing on disc, if that is turned on.
+	 */
+	private ConfigurationWatcher configurationWatcher = null;
+
 	/**
 	 * The maintenance thread.
 	 */
 	private UpkeepThread upKeep;
 
 	/**
-	 * Used to generate unique thread names.
+	 * The number of processes started, for reporting.
 	 */
 	static private long startCount = 0;
 
+	/**
+	 * Runs the process starts, with no more threads than may start at once.
+	 * Starts beyond that wait in its queue, rather than each in a thread of
+	 * its own.
+	 */
+	private ThreadPoolExecutor starterExecutor;
+
 	/**
 	 * Used to restrict the number of processes starting up at any one time.
 	 */
-	private volatile Semaphore startupThrottle;
+	private volatile StartupThrottle startupThrottle;
 
 	/**
 	 * The pool of processes currently being used. These will be thrown away
@@ -54,6 +127,68 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	private List<MaximaProcess> usedPool = Collections
 			.synchronizedList(new LinkedList<MaximaProcess>());
 
+	/**
+	 * The open sessions, keyed by handle. Their processes are not in usedPool.
+	 */
+	private ConcurrentHashMap<String, MaximaSession> sessions =
+			new ConcurrentHashMap<String, MaximaSession>();
+
+	/**
+	 * Limits the number of sessions open at any one time.
+	 */
+	private Semaphore sessionPermits;
+
+	/**
+	 * Number of timed-out session evaluations where the process was interrupted
+	 * and kept, and where that failed and the session was closed.
+	 */
+	private AtomicLong interruptsSucceeded = new AtomicLong();
+	private AtomicLong interruptsFailed = new AtomicLong();
+
+	/**
+	 * Number of process starts skipped because there was not enough memory.
+	 */
+	private AtomicLong memoryRefusals = new AtomicLong();
+
+	/**
+	 * Number of times a batch of processes was started because a pool ran low.
+	 */
+	private AtomicLong refillCount = new AtomicLong();
+
+	/**
+	 * Number of pools stopped for being idle.
+	 */
+	private AtomicLong idleStopCount = new AtomicLong();
+
+	/**
+	 * The names of the scheduled capacity windows that the pools are being
+	 * kept filled for.
+	 */
+	private Set<String> activeWindows = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Number of ready processes killed when scheduled capacity windows closed.
+	 */
+	private AtomicLong scheduledReleaseCount = new AtomicLong();
+
+	/**
+	 * Saves what the pools have learned, for after a restart, or null if that
+	 * is turned off.
+	 */
+	private PoolState poolState = null;
+
+	/**
+	 * Set once all the pools have been filled to the readiness fraction after
+	 * start-up. Stays set after that.
+	 */
+	private volatile boolean ready = false;
+
+	/**
+	 * Set by destroy, so that requests waiting for a stopped pool are turned
+	 * away rather than sent to a new one.
+	 */
+	private volatile boolean destroying = false;
+
 	/**
 	 * Constructor.
 	 * @param poolConfig the configuration for the pool.
@@ -62,7 +197,28 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	PoolCoordinator(PoolConfiguration poolConfig) {
 
 		poolConfiguration = poolConfig;
-		startupThrottle = new Semaphore(poolConfiguration.startupLimit);
+		if (poolConfiguration.stateFileName.length() > 0) {
+			poolState = new PoolState(new File(poolConfiguration.directoryRoot,
+					poolConfiguration.stateFileName), poolConfiguration.stateMaximumAge);
+			poolState.load();
+		}
+		startupThrottle = new StartupThrottle(poolConfiguration.startupLimit,
+				poolConfiguration.adaptiveStartupLimit, poolConfiguration.startupLoadThreshold,
+				poolConfiguration.startupSlowdownThreshold);
+		int starterThreads = Math.max(poolConfiguration.startupLimit, 1);
+		starterExecutor = new ThreadPoolExecutor(starterThreads, starterThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicLong threadCount = new AtomicLong();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "MaximaPool-starter-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		starterExecutor.allowCoreThreadTimeOut(true);
+		preambleCache = new PreambleCache(poolConfiguration.preambleCacheSize);
+		sessionPermits = new Semaphore(poolConfiguration.sessionLimit);
 
 		// Start the upkeep thread.
 		upKeep = new UpkeepThread("MaximaPool-upkeep", this, poolConfiguration.maintenanceCycleTime);
@@ -79,17 +235,137 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 		}
 
 		ProcessConfiguration processConfiguration = poolConfiguration.processConfigurations.get(configurationName);
-		if (poolConfiguration == null) {
+		if (processConfiguration == null) {
 			throw new RuntimeException("Cannot start a pool for unknown configuration " + configurationName);
 		}
 
-		ProcessPool pool = new ProcessPool(processConfiguration);
+		// Restore the saved state before anyone else can see the pool.
+		ProcessPool pool = createPool(processConfiguration);
+		if (poolState != null) {
+			poolState.restore(configurationName, pool, poolConfiguration.movingAverageDataPoints);
+		}
 		ProcessPool existing = processPools.putIfAbsent(configurationName, pool);
 		if (existing != null) {
 			// This may happen if there was a race condition. Someone else got
 			// there first, so just descard the pool we created.
 			pool.destroy();
+			return;
+		}
+		if (poolState != null) {
+			poolState.forget(configurationName);
+		}
+
+		updateImage(pool);
+	}
+
+	/**
+	 * Create a pool for a configuration.
+	 * @param processConfiguration the configuration.
+	 * @return the new pool.
+	 */
+	private ProcessPool createPool(ProcessConfiguration processConfiguration) {
+		return new ProcessPool(processConfiguration, new CircuitBreaker(
+				poolConfiguration.breakerFailureThreshold,
+				poolConfiguration.breakerInitialBackoff,
+				poolConfiguration.breakerMaximumBackoff),
+				SizingPolicy.create(poolConfiguration));
+	}
+
+	/**
+	 * Start enough processes, in parallel, to fill each running pool to its
+	 * minimum size straight away, rather than waiting for the maintenance
+	 * cycle to do it a few at a time. The startup throttle still applies.
+	 * Call this after all the pools that should auto-start have been started.
+	 */
+	void warmUp() {
+		for (String configurationName : processPools.keySet()) {
+			warmUp(configurationName);
+		}
+	}
+
+	/**
+	 * Start enough processes, in parallel, to fill one running pool to its
+	 * target size straight away. That is the minimum size, unless the pool
+	 * has carried on from a saved state.
+	 * @param configurationName the name of a running configuration.
+	 */
+	private void warmUp(String configurationName) {
+		ProcessPool pool = processPools.get(configurationName);
+		if (pool == null) {
+			return;
+		}
+		int required = getTargetPoolSize(configurationName, pool) - pool.getAvailableProcessesCount() -
+				pool.getStartingCount();
+		for (int i = 0; i < required; i++) {
+			startProcess(pool);
+		}
+	}
+
+	/**
+	 * Start watching directoryRoot, so that configurations added, changed or
+	 * removed on disc are noticed without anyone re-scanning. Does nothing if
+	 * that is turned off in the pool configuration.
+	 */
+	void watchConfigurations() {
+		if (!poolConfiguration.watchConfigurations || configurationWatcher != null) {
+			return;
+		}
+		try {
+			configurationWatcher = new ConfigurationWatcher(this,
+					poolConfiguration.directoryRoot, poolConfiguration.watchSettleTime);
+		} catch (IOException e) {
+			System.out.println("Cannot watch " + poolConfiguration.directoryRoot +
+					" for configuration changes: " + e.getMessage());
+			return;
+		}
+		configurationWatcher.start();
+	}
+
+	/**
+	 * Re-read one configuration from disc, after it has changed. If it is a
+	 * new version that should auto-start, its pool is started and filled
+	 * straight away, so that the first requests for it do not find it empty.
+	 * Running pools whose configuration changed are left for an administrator
+	 * to roll.
+	 * @param configurationName the name of the configuration.
+	 */
+	void refreshConfiguration(String configurationName) {
+		ProcessConfiguration oldConfiguration = getProcessConfiguration(configurationName);
+		ProcessConfiguration newConfiguration =
+				poolConfiguration.updateProcessConfiguration(configurationName);
+		if (newConfiguration == null || newConfiguration.equals(oldConfiguration)) {
+			return;
+		}
+
+		System.out.println("Configuration " + configurationName + " has " +
+				(oldConfiguration == null ? "appeared" : "changed") + " on disc.");
+		imageBuilder.getImage(newConfiguration);
+
+		if (newConfiguration.autoStart && !processPools.containsKey(configurationName)) {
+			startConfiguration(configurationName);
+			warmUp(configurationName);
+		}
+	}
+
+	/**
+	 * Check whether all the running pools have been filled up to the readiness
+	 * fraction since start-up. Once that has happened, this always returns true.
+	 * @return whether the pools are ready for traffic.
+	 */
+	boolean isReady() {
+		if (ready) {
+			return true;
 		}
+
+		double required = poolConfiguration.readinessFraction * getMinimumPoolSize();
+		for (ProcessPool pool : processPools.values()) {
+			if (pool.getAvailableProcessesCount() < required) {
+				return false;
+			}
+		}
+
+		ready = true;
+		return true;
 	}
 
 	/**
@@ -100,15 +376,143 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 		ProcessPool pool = processPools.remove(configurationName);
 		if (pool != null) {
 			pool.destroy();
+			redirectWaiters(configurationName, pool);
+		}
+		PendingRoll roll = pendingRolls.remove(configurationName);
+		if (roll != null) {
+			roll.pool.destroy();
+		}
+		preambleCache.killProcesses(configurationName);
+		for (MaximaSession session : sessions.values()) {
+			if (session.configurationName.equals(configurationName)) {
+				closeSession(session);
+			}
+		}
+	}
+
+	/**
+	 * Switch a running pool to the configuration that is now on disc, without
+	 * interrupting service. A new pool is created with the new configuration,
+	 * and filled to the size of the current one in the background. Once it is
+	 * ready, maintenance puts it in place of the current pool, which is then
+	 * drained and destroyed. If the pool is not running, it is just started.
+	 * @param configurationName the configuration to roll.
+	 */
+	void rollConfiguration(String configurationName) {
+		ProcessConfiguration processConfiguration = getProcessConfiguration(configurationName);
+		if (processConfiguration == null) {
+			throw new RuntimeException("Cannot roll to unknown configuration " + configurationName);
+		}
+
+		ProcessPool currentPool = processPools.get(configurationName);
+		if (currentPool == null) {
+			startConfiguration(configurationName);
+			return;
+		}
+		if (currentPool.getProcessConfiguration().equals(processConfiguration)) {
+			return;
+		}
+
+		int target = Math.max(currentPool.getAvailableProcessesCount(),
+				getMinimumPoolSize(configurationName));
+		PendingRoll roll = new PendingRoll(createPool(processConfiguration), target);
+		if (pendingRolls.putIfAbsent(configurationName, roll) != null) {
+			// Already rolling.
+			roll.pool.destroy();
+			return;
+		}
+
+		updateImage(roll.pool);
+		for (int i = 0; i < target; i++) {
+			startProcess(roll.pool);
+		}
+	}
+
+	/**
+	 * Maintenance task that progresses any rolling upgrades. New pools that are
+	 * ready replace the current ones, new pools that are failing, or have
+	 * stopped filling up, are abandoned, and replaced pools are destroyed once
+	 * no request is waiting for them.
+	 */
+	private void progressRolls() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, PendingRoll> entry : pendingRolls.entrySet()) {
+			String configurationName = entry.getKey();
+			PendingRoll roll = entry.getValue();
+
+			if (roll.pool.isFailing()) {
+				System.out.println("Abandoning the roll of " + configurationName +
+						", since its processes are failing to start.");
+				pendingRolls.remove(configurationName);
+				roll.pool.destroy();
+				continue;
+			}
+
+			int ready = roll.pool.getAvailableProcessesCount();
+			if (ready < roll.target) {
+				if (ready > roll.mostReady) {
+					roll.mostReady = ready;
+					roll.progressTime = now;
+				} else if (now - roll.progressTime > poolConfiguration.rollTimeout) {
+					System.out.println("Abandoning the roll of " + configurationName +
+							", since it has not gained a ready process for " +
+							poolConfiguration.rollTimeout + " ms.");
+					pendingRolls.remove(configurationName);
+					roll.pool.destroy();
+					continue;
+				}
+
+				// Replace any starts that failed.
+				for (int i = ready + roll.pool.getStartingCount(); i < roll.target; i++) {
+					startProcess(roll.pool);
+				}
+				continue;
+			}
+
+			pendingRolls.remove(configurationName);
+			ProcessPool oldPool = processPools.replace(configurationName, roll.pool);
+			if (oldPool == null) {
+				// The pool was stopped in the meantime.
+				processPools.remove(configurationName, roll.pool);
+				roll.pool.destroy();
+				continue;
+			}
+			oldPool.retire();
+			redirectWaiters(configurationName, oldPool);
+			drainingPools.add(oldPool);
+			preambleCache.killProcesses(configurationName);
+		}
+
+		synchronized (drainingPools) {
+			for (ProcessPool pool : new ArrayList<ProcessPool>(drainingPools)) {
+				if (pool.getWaitingCount() == 0) {
+					drainingPools.remove(pool);
+					pool.destroy();
+				}
+			}
 		}
 	}
 
+	/**
+	 * @param configurationName the name of a running configuration.
+	 * @return whether a new pool is being warmed up to replace it.
+	 */
+	boolean isRolling(String configurationName) {
+		return pendingRolls.containsKey(configurationName);
+	}
+
 	/**
 	 * Look on disc for all the child directories of directoryRoot, to find the
 	 * processes configurations that we can run.
 	 */
 	void scanConfigurations() {
 		poolConfiguration.scanAvailableProcessConfigurations();
+
+		// Start building any saved images that are missing.
+		imageBuilder.clearFailures();
+		for (ProcessConfiguration configuration : poolConfiguration.processConfigurations.values()) {
+			imageBuilder.getImage(configuration);
+		}
 	}
 
 	/**
@@ -116,6 +520,8 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	 * method this class cannot be used any more.
 	 */
 	void destroy() {
+		destroying = true;
+
 		// Kill the upkeep thread.
 		try {
 			upKeep.stopRunning();
@@ -123,11 +529,43 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 		}
 		upKeep = null;
 
+		// Drop the starts that have not begun. Those under way finish.
+		starterExecutor.getQueue().clear();
+		starterExecutor.shutdown();
+
+		if (configurationWatcher != null) {
+			try {
+				configurationWatcher.stopRunning();
+			} catch (InterruptedException e) {
+			}
+			configurationWatcher = null;
+		}
+
+		if (poolState != null) {
+			poolState.save(System.currentTimeMillis(), processPools);
+		}
+
 		// Kill all running process pools.
 		for (String configurationName : processPools.keySet()) {
 			stopConfiguration(configurationName);
 		}
 		processPools = null;
+		for (PendingRoll roll : pendingRolls.values()) {
+			roll.pool.destroy();
+		}
+		pendingRolls.clear();
+		synchronized (drainingPools) {
+			for (ProcessPool pool : drainingPools) {
+				pool.destroy();
+			}
+			drainingPools.clear();
+		}
+		preambleCache.destroy();
+
+		// Close all sessions.
+		for (MaximaSession session : sessions.values()) {
+			closeSession(session);
+		}
 
 		// Kill all used processes.
 		for (MaximaProcess mp : usedPool) {
@@ -150,8 +588,20 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 			// Exact match. Good.
 			return requestedConfigurationName;
 		}
+
+		if (requestedConfigurationName != null && poolConfiguration.lazyStart &&
+				getProcessConfiguration(requestedConfigurationName) != null) {
+			// Known, but not running, perhaps because it was idle. Start it.
+			System.out.println("Starting " + requestedConfigurationName + " on demand.");
+			startConfiguration(requestedConfigurationName);
+			warmUp(requestedConfigurationName);
+			return requestedConfigurationName;
+		}
 		
 		List<String> runningConfigurations = getRunningConfigurations();
+		if (runningConfigurations.isEmpty()) {
+			throw new PoolUnavailableException("No version of Maxima is running.");
+		}
 		if (requestedConfigurationName == null) {
 			// Specific configuration not requested. This should be a legacy
 			// situation, so return the oldest running configuration.
@@ -169,6 +619,63 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 		return bestMatch;
 	}
 
+	/**
+	 * Get the pool for a configuration. The pool may have been stopped, for
+	 * being idle or by an administrator, after a request was routed to it. It
+	 * is then started again if lazy.start allows that and the configuration
+	 * is still on disc, and otherwise the best matching running pool is used.
+	 * @param configurationName the name of a configuration.
+	 * @return the pool.
+	 * @throws PoolUnavailableException if no pool is running.
+	 */
+	private ProcessPool getRunningPool(String configurationName) {
+		ProcessPool pool = processPools.get(configurationName);
+		while (pool == null) {
+			if (poolConfiguration.lazyStart && getProcessConfiguration(configurationName) != null) {
+				startConfiguration(configurationName);
+			} else {
+				configurationName = getBestMatchingPoolName(configurationName);
+			}
+			pool = processPools.get(configurationName);
+		}
+		return pool;
+	}
+
+	/**
+	 * Called each time a process is taken from a pool. If the processes ready
+	 * or starting have dropped below the low-water mark, start a batch to
+	 * bring the pool back up to what the current demand needs, straight away.
+	 * The starts queue for the startup throttle, so a burst is not limited to
+	 * one start per request, nor left until the next maintenance cycle.
+	 * @param configurationName the name of the pool's configuration.
+	 * @param pool the pool.
+	 */
+	private void refillIfLow(String configurationName, ProcessPool pool) {
+		int needed = getTargetPoolSize(configurationName, pool);
+		// Requests already waiting will take processes that are starting.
+		int have = pool.getAvailableProcessesCount() + pool.getStartingCount() -
+				pool.getWaitingCount();
+		if (have >= Math.ceil(needed * poolConfiguration.refillLowWater)) {
+			return;
+		}
+		refillCount.incrementAndGet();
+		for (int i = have; i < needed; i++) {
+			startProcess(pool);
+		}
+	}
+
+	/**
+	 * @param configurationName the name of the pool's configuration.
+	 * @param pool a pool.
+	 * @return the number of processes the pool needs, ready or starting,
+	 * according to its sizing policy.
+	 */
+	private int getTargetPoolSize(String configurationName, ProcessPool pool) {
+		int minimum = getMinimumPoolSize(configurationName);
+		return pool.getSizingPolicy().getTargetSize(pool, minimum,
+				Math.max(poolConfiguration.maximumAvailableProcesses, minimum));
+	}
+
 	/**
 	 * Get a MaximaProcess from the pool. If the desired configuration is not
 	 * avialable, the best available match will be used.
@@ -176,20 +683,292 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	 * @return a process.
 	 */
 	MaximaProcess getProcess(String requestedConfigurationName) {
+		return getProcess(requestedConfigurationName, null);
+	}
+
+	/**
+	 * Get a MaximaProcess from the pool, preferably one that has already
+	 * evaluated a given preamble. If there is no such process, a normal one is
+	 * returned. Either way, call applyPreamble before using it.
+	 * @param requestedConfigurationName the configuration desired.
+	 * @param preambleHash the hash of a registered preamble, or null.
+	 * @return a process.
+	 */
+	MaximaProcess getProcess(String requestedConfigurationName, String preambleHash) {
+		MaximaProcess maximaProcess = takeProcess(getBestMatchingPoolName(requestedConfigurationName), preambleHash);
+		usedPool.add(maximaProcess);
+		return maximaProcess;
+	}
+
+	/**
+	 * Get a MaximaProcess from the pool, like getProcess, but without waiting
+	 * for one. If none is ready, the waiter is called when one is, on the
+	 * thread that started it. Either way the process has been activated, and
+	 * applyPreamble must be called before using it.
+	 * @param requestedConfigurationName the configuration desired.
+	 * @param preambleHash the hash of a registered preamble, or null.
+	 * @param waiter what to give the process to.
+	 * @throws PoolUnavailableException if the pool is empty and processes are
+	 * failing to start.
+	 */
+	void getProcessAsync(String requestedConfigurationName, String preambleHash,
+			final ProcessPool.ProcessWaiter waiter) {
+		ProcessPool.ProcessWaiter taker = new ProcessPool.ProcessWaiter() {
+			public boolean isWaiting() {
+				return waiter.isWaiting();
+			}
+
+			public void processReady(MaximaProcess maximaProcess) {
+				maximaProcess.activate();
+				usedPool.add(maximaProcess);
+				waiter.processReady(maximaProcess);
+			}
+
+			public void failed(RuntimeException e) {
+				waiter.failed(e);
+			}
+		};
+
 		String configurationName = getBestMatchingPoolName(requestedConfigurationName);
+		if (preambleHash != null) {
+			MaximaProcess maximaProcess = preambleCache.takeProcess(configurationName, preambleHash);
+			startPreambleProcesses(configurationName, preambleHash);
+			if (maximaProcess != null) {
+				getRunningPool(configurationName).recordRequest();
+				taker.processReady(maximaProcess);
+				return;
+			}
+		}
 
 		// Start a new one as we are going to take one...
+		ProcessPool pool = getRunningPool(configurationName);
 		if (startupThrottle.availablePermits() > 0) {
-			startProcess(configurationName);
+			startProcess(pool);
 		}
+		refillIfLow(configurationName, pool);
+		waitInPool(configurationName, pool, taker);
+	}
 
-		MaximaProcess maximaProcess = processPools.get(configurationName).getProcess();
+	/**
+	 * Helper used by getProcessAsync and redirectWaiters.
+	 * @param configurationName the name of a running configuration.
+	 * @param pool its pool.
+	 * @param waiter what to give the process to.
+	 */
+	private void waitInPool(String configurationName, ProcessPool pool, ProcessPool.ProcessWaiter waiter) {
+		while (!pool.getProcessAsync(waiter)) {
+			// The pool has been replaced. Use the new one.
+			pool = getRunningPool(configurationName);
+		}
+	}
+
+	/**
+	 * Send the requests waiting for a process from a pool that has been
+	 * replaced or stopped to the pool now running that configuration.
+	 * @param configurationName the name of the configuration.
+	 * @param oldPool the pool.
+	 */
+	private void redirectWaiters(String configurationName, ProcessPool oldPool) {
+		for (ProcessPool.ProcessWaiter waiter : oldPool.removeWaiters()) {
+			try {
+				if (destroying) {
+					throw new PoolUnavailableException("The server is shutting down.");
+				}
+				waitInPool(configurationName, getRunningPool(configurationName), waiter);
+			} catch (RuntimeException e) {
+				waiter.failed(e);
+			}
+		}
+	}
+
+	/**
+	 * Helper used by getProcess and openSession. Take a process from a pool,
+	 * and activate it.
+	 * @param configurationName the name of a running configuration.
+	 * @param preambleHash the hash of a registered preamble, or null.
+	 * @return a process.
+	 */
+	private MaximaProcess takeProcess(String configurationName, String preambleHash) {
+		MaximaProcess maximaProcess = null;
+		if (preambleHash != null) {
+			maximaProcess = preambleCache.takeProcess(configurationName, preambleHash);
+			startPreambleProcesses(configurationName, preambleHash);
+		}
+
+		if (maximaProcess != null) {
+			getRunningPool(configurationName).recordRequest();
+		} else {
+			// Start a new one as we are going to take one...
+			ProcessPool pool = getRunningPool(configurationName);
+			if (startupThrottle.availablePermits() > 0) {
+				startProcess(pool);
+			}
+			refillIfLow(configurationName, pool);
+
+			maximaProcess = pool.getProcess();
+			while (maximaProcess == null) {
+				// The pool was replaced while we were waiting. Use the new one.
+				maximaProcess = getRunningPool(configurationName).getProcess();
+			}
+		}
 
-		usedPool.add(maximaProcess);
 		maximaProcess.activate();
 		return maximaProcess;
 	}
 
+	/**
+	 * Open a session, which keeps one process for a sequence of evaluations.
+	 * @param requestedConfigurationName the configuration desired.
+	 * @param plotUrlBase URL that plot images will be served from.
+	 * @return the new session, or null if the maximum number of sessions are
+	 * already open.
+	 */
+	MaximaSession openSession(String requestedConfigurationName, String plotUrlBase) {
+		if (!sessionPermits.tryAcquire()) {
+			return null;
+		}
+
+		String configurationName = getBestMatchingPoolName(requestedConfigurationName);
+		MaximaSession session;
+		try {
+			MaximaProcess maximaProcess = takeProcess(configurationName, null);
+			maximaProcess.startSession(plotUrlBase);
+			session = new MaximaSession(UUID.randomUUID().toString(), configurationName, maximaProcess);
+		} catch (RuntimeException e) {
+			sessionPermits.release();
+			throw e;
+		}
+
+		sessions.put(session.handle, session);
+		return session;
+	}
+
+	/**
+	 * @param handle a session handle.
+	 * @return the open session with that handle, or null if there is none.
+	 */
+	MaximaSession getSession(String handle) {
+		return sessions.get(handle);
+	}
+
+	/**
+	 * Called when evaluating input in a session has timed out. Try to interrupt
+	 * the process, so the session can carry on. If that is not possible, the
+	 * session is closed. Either way, the partial output is then available
+	 * from the process.
+	 * @param session the session.
+	 * @return whether the session is still open.
+	 */
+	boolean salvageSession(MaximaSession session) {
+		if (session.process.interrupt()) {
+			interruptsSucceeded.incrementAndGet();
+			return true;
+		}
+		interruptsFailed.incrementAndGet();
+		closeSession(session);
+		return false;
+	}
+
+	/**
+	 * Close a session, and kill its process. Does nothing if the session is
+	 * already closed.
+	 * @param session the session.
+	 */
+	void closeSession(MaximaSession session) {
+		if (!session.markClosed()) {
+			return;
+		}
+		sessions.remove(session.handle);
+		session.process.kill();
+		sessionPermits.release();
+	}
+
+	/**
+	 * Register a preamble, so that requests can refer to it by its hash.
+	 * @param text the Maxima code.
+	 * @return the hash that identifies it.
+	 */
+	String registerPreamble(String text) {
+		return preambleCache.register(text);
+	}
+
+	/**
+	 * @param preambleHash the hash of a preamble.
+	 * @return whether that preamble is registered.
+	 */
+	boolean hasPreamble(String preambleHash) {
+		return preambleCache.getText(preambleHash) != null;
+	}
+
+	/**
+	 * Make sure that a process has evaluated a preamble, evaluating it now if
+	 * necessary. If that times out, the process is killed.
+	 * @param maximaProcess the process.
+	 * @param preambleHash the hash of a registered preamble, or null.
+	 * @param timeout limit in ms.
+	 * @return false if evaluating the preamble timed out.
+	 */
+	boolean applyPreamble(MaximaProcess maximaProcess, String preambleHash, long timeout) {
+		if (preambleHash == null || preambleHash.equals(maximaProcess.getPreambleHash())) {
+			return true;
+		}
+
+		String text = preambleCache.getText(preambleHash);
+		if (text == null) {
+			throw new RuntimeException("Unknown preamble " + preambleHash);
+		}
+
+		if (!maximaProcess.evaluate(text, timeout)) {
+			maximaProcess.kill();
+			return false;
+		}
+		maximaProcess.skipOutput();
+		maximaProcess.setPreambleHash(preambleHash);
+		return true;
+	}
+
+	/**
+	 * Start processes asynchronously that have evaluated a preamble, if there
+	 * are not already enough.
+	 * @param configurationName the configuration to use.
+	 * @param preambleHash the hash of a registered preamble.
+	 */
+	private void startPreambleProcesses(final String configurationName, final String preambleHash) {
+		final ProcessPool pool = getRunningPool(configurationName);
+		if (pool.isFailing()) {
+			return;
+		}
+		int required = preambleCache.reserveStarts(configurationName, preambleHash,
+				poolConfiguration.preambleProcesses);
+		for (int i = 0; i < required; i++) {
+			startCount++;
+			starterExecutor.execute(new Runnable() {
+				public void run() {
+					MaximaProcess maximaProcess = null;
+					try {
+						startupThrottle.acquireUninterruptibly();
+						maximaProcess = pool.makeProcess();
+						if (applyPreamble(maximaProcess, preambleHash,
+								pool.getProcessConfiguration().executionTimeout)) {
+							maximaProcess.deactivate();
+						} else {
+							maximaProcess = null;
+						}
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+						if (maximaProcess != null) {
+							maximaProcess.kill();
+							maximaProcess = null;
+						}
+					} finally {
+						startupThrottle.release();
+						preambleCache.addProcess(configurationName, preambleHash, maximaProcess);
+					}
+				}
+			});
+		}
+	}
+
 	/**
 	 * Low-level that creates a process in the current thread, and does not add
 	 * it to the pool.
@@ -200,15 +979,24 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	}
 
 	/**
-	 * Start a process asynchronously, and add it to the pool when done.
-	 * @return the new process.
+	 * Start a process asynchronously, and add it to a given pool when done.
+	 * @param pool the pool.
+	 * @return whether the start was accepted. It is refused when there is not
+	 * enough memory, or the pool's processes are failing to start.
 	 */
-	private void startProcess(String configurationName) {
+	private boolean startProcess(final ProcessPool pool) {
+		// Check the memory first: when the circuit breaker is open, allowStart
+		// hands out its one trial start, which only the start itself releases.
+		if (!memoryAllowsStart(pool)) {
+			return false;
+		}
+		if (!pool.allowStart()) {
+			// Processes are failing to start. Wait for the circuit breaker.
+			return false;
+		}
+		pool.markStarting();
 		startCount++;
-		final ProcessPool pool = processPools.get(configurationName);
-		String threadName = Thread.currentThread().getName() + "-starter-" + startCount;
-		Thread starter = new Thread(threadName) {
-			@Override
+		starterExecutor.execute(new Runnable() {
 			public void run() {
 				try {
 					startupThrottle.acquireUninterruptibly();
@@ -217,8 +1005,100 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 					startupThrottle.release();
 				}
 			}
-		};
-		starter.start();
+		});
+		return true;
+	}
+
+	/**
+	 * Check whether there is memory for another process in a pool. This uses
+	 * the estimated size of the processes in each pool, and what the system
+	 * says is available. Until the size of a pool's processes is known, it is
+	 * assumed to be like the other pools, or if there are none, processes are
+	 * started one at a time until the first one can be measured.
+	 * @param pool the pool to start a process in.
+	 * @return whether to go ahead.
+	 */
+	private boolean memoryAllowsStart(ProcessPool pool) {
+		if (!ProcUtils.isAvailable() || (poolConfiguration.memoryBudget <= 0 &&
+				poolConfiguration.memoryReserve <= 0)) {
+			// Cannot measure, or nothing to check.
+			return true;
+		}
+
+		long processSize = pool.getMemoryEstimate();
+		if (processSize == 0) {
+			for (ProcessPool p : processPools.values()) {
+				processSize = Math.max(processSize, p.getMemoryEstimate());
+			}
+			if (processSize == 0 && pool.getStartingCount() > 0) {
+				return false;
+			}
+		}
+
+		if (poolConfiguration.memoryBudget > 0) {
+			if (getProcessMemory() + processSize > poolConfiguration.memoryBudget) {
+				memoryRefusals.incrementAndGet();
+				return false;
+			}
+		}
+
+		if (poolConfiguration.memoryReserve > 0) {
+			long available = ProcUtils.readAvailableMemory();
+			if (available >= 0) {
+				// Processes already starting are not fully counted yet.
+				for (ProcessPool p : processPools.values()) {
+					available -= p.getStartingCount() * p.getMemoryEstimate();
+				}
+				if (available - processSize < poolConfiguration.memoryReserve) {
+					memoryRefusals.incrementAndGet();
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the estimated memory (bytes) used by all the live processes:
+	 * waiting in the pools, starting up, in use, in sessions and holding a
+	 * preamble.
+	 */
+	private long getProcessMemory() {
+		List<ProcessPool> pools = new ArrayList<ProcessPool>(processPools.values());
+		for (PendingRoll roll : pendingRolls.values()) {
+			pools.add(roll.pool);
+		}
+		synchronized (drainingPools) {
+			pools.addAll(drainingPools);
+		}
+
+		long total = 0;
+		for (ProcessPool pool : pools) {
+			total += (pool.getAvailableProcessesCount() + pool.getStartingCount()) *
+					pool.getMemoryEstimate();
+		}
+		for (Map.Entry<String, ProcessPool> entry : processPools.entrySet()) {
+			total += preambleCache.countProcesses(entry.getKey()) * entry.getValue().getMemoryEstimate();
+		}
+		synchronized (usedPool) {
+			for (MaximaProcess process : usedPool) {
+				total += getMemoryEstimate(process);
+			}
+		}
+		for (MaximaSession session : sessions.values()) {
+			total += getMemoryEstimate(session.process);
+		}
+		return total;
+	}
+
+	/**
+	 * Helper used by getProcessMemory.
+	 * @param process a process.
+	 * @return the estimated memory (bytes) it uses.
+	 */
+	private long getMemoryEstimate(MaximaProcess process) {
+		return process.getOwner() == null ? 0 : process.getOwner().getMemoryEstimate();
 	}
 
 	/**
@@ -227,13 +1107,162 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	 */
 	void notifyProcessFinishedWith(MaximaProcess process) {
 		usedPool.remove(process);
+		if (process.getOwner() != null) {
+			process.getOwner().recordEvaluation(process);
+		}
 	}
 
 	@Override
 	public void doMaintenance(long sleepTime) {
+		updateImages();
+		applyCapacitySchedule(System.currentTimeMillis());
+		stopIdlePools(System.currentTimeMillis());
+		progressRolls();
 		killOverdueProcesses();
+		OrphanReaper.reap();
 		updateEstimates();
 		startMoreProcessesIfRequired();
+		if (poolState != null) {
+			poolState.saveIfDue(System.currentTimeMillis(), poolConfiguration.stateSaveInterval,
+					processPools);
+		}
+	}
+
+	/**
+	 * Maintenance task that stops pools that have had no requests for the idle
+	 * timeout, so they no longer hold memory. They are started again by the
+	 * next request for them. At least one pool is always left running.
+	 * @param testTime time to consider as now.
+	 */
+	private void stopIdlePools(long testTime) {
+		if (poolConfiguration.idleStopTime <= 0) {
+			return;
+		}
+
+		Set<String> inUse = new HashSet<String>(pendingRolls.keySet());
+		for (MaximaSession session : sessions.values()) {
+			inUse.add(session.configurationName);
+		}
+
+		for (Map.Entry<String, ProcessPool> entry : processPools.entrySet()) {
+			if (processPools.size() <= 1) {
+				return;
+			}
+			ProcessPool pool = entry.getValue();
+			if (inUse.contains(entry.getKey()) || pool.getWaitingCount() > 0 ||
+					getScheduledMinimum(entry.getKey(), testTime) > 0 ||
+					testTime - pool.getLastRequestTime() < poolConfiguration.idleStopTime) {
+				continue;
+			}
+			System.out.println("Stopping " + entry.getKey() + ", since it has had no requests for " +
+					(testTime - pool.getLastRequestTime()) + " ms.");
+			stopConfiguration(entry.getKey());
+			idleStopCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Maintenance task for scheduled capacity. When a window comes within the
+	 * lead time of opening, the pools it names are started, and from then on
+	 * getMinimumPoolSize includes its levels, so the pools fill up. Pools that
+	 * are not running, including configurations that only appear while the
+	 * window is open, are started on every cycle until it closes. When it
+	 * closes, ready processes beyond what the pools now need are killed.
+	 * @param testTime time to consider as now.
+	 */
+	private void applyCapacitySchedule(long testTime) {
+		for (CapacityWindow window : poolConfiguration.capacityWindows) {
+			boolean active = window.isActive(testTime, poolConfiguration.scheduleLeadTime);
+
+			if (active) {
+				boolean opening = activeWindows.add(window.name);
+				if (opening) {
+					System.out.println("Filling the pools for scheduled capacity " + window.name + ", " +
+							window.describe() + ".");
+				}
+				for (String configurationName : window.versionMinimums.keySet()) {
+					if (poolConfiguration.processConfigurations.containsKey(configurationName)) {
+						startConfiguration(configurationName);
+					} else if (opening) {
+						System.out.println("Scheduled capacity " + window.name +
+								" is for unknown configuration " + configurationName +
+								". It will be started if it appears before the end.");
+					}
+				}
+
+			} else if (!active && activeWindows.remove(window.name)) {
+				int released = 0;
+				for (Map.Entry<String, ProcessPool> entry : processPools.entrySet()) {
+					released += entry.getValue().trimAvailableProcesses(
+							getTargetPoolSize(entry.getKey(), entry.getValue()));
+				}
+				scheduledReleaseCount.addAndGet(released);
+				System.out.println("Scheduled capacity " + window.name + " has ended. Released " +
+						released + " processes.");
+			}
+		}
+	}
+
+	/**
+	 * @param configurationName a configuration name.
+	 * @param testTime time to consider as now.
+	 * @return the number of processes the scheduled capacity windows want that
+	 * configuration to have now, or 0.
+	 */
+	private int getScheduledMinimum(String configurationName, long testTime) {
+		int minimum = 0;
+		for (CapacityWindow window : poolConfiguration.capacityWindows) {
+			if (window.isActive(testTime, poolConfiguration.scheduleLeadTime)) {
+				minimum = Math.max(minimum, window.getMinimum(configurationName));
+			}
+		}
+		return minimum;
+	}
+
+	/**
+	 * Maintenance task that switches pools to their saved images, once they
+	 * are built, and back to the normal command-line if processes fail to
+	 * start from them. Images that are no longer used are deleted.
+	 */
+	private void updateImages() {
+		List<ProcessPool> pools = new ArrayList<ProcessPool>(processPools.values());
+		for (PendingRoll roll : pendingRolls.values()) {
+			pools.add(roll.pool);
+		}
+
+		List<File> imagesInUse = new ArrayList<File>();
+		for (ProcessPool pool : pools) {
+			if (pool.takeFailedImage() != null) {
+				imageBuilder.imageFailed(pool.getProcessConfiguration());
+			}
+			updateImage(pool);
+			if (pool.getImage() != null) {
+				imagesInUse.add(pool.getImage());
+			}
+		}
+		synchronized (drainingPools) {
+			for (ProcessPool pool : drainingPools) {
+				if (pool.getImage() != null) {
+					imagesInUse.add(pool.getImage());
+				}
+			}
+		}
+		imageBuilder.deleteStaleImages(imagesInUse);
+	}
+
+	/**
+	 * If a pool should be using a saved image, and it has been built, switch
+	 * the pool to use it. Otherwise, the image build is started if necessary.
+	 * @param pool the pool to update.
+	 */
+	private void updateImage(ProcessPool pool) {
+		if (pool.getImage() != null) {
+			return;
+		}
+		File image = imageBuilder.getImage(pool.getProcessConfiguration());
+		if (image != null) {
+			pool.useImage(image);
+		}
 	}
 
 	/**
@@ -242,23 +1271,78 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	private void killOverdueProcesses() {
 		long testTime = System.currentTimeMillis();
 
-		// Kill stale processes from all process pools.
+		// Kill stale processes from all process pools, and start replacements
+		// for any that will expire soon.
 		for (ProcessPool pool : processPools.values()) {
+			pool.checkWaiters();
 			pool.killOverdueProcesses(testTime);
+			// Only mark a process once its replacement is on its way, so that
+			// refused starts do not make the pool shrink.
+			for (MaximaProcess process : pool.getProcessesToReplace(testTime)) {
+				if (!startProcess(pool)) {
+					break;
+				}
+				pool.markForReplacement(process);
+			}
+		}
+		// progressRolls starts replacements for what the new pools lose here.
+		for (PendingRoll roll : pendingRolls.values()) {
+			roll.pool.killOverdueProcesses(testTime);
 		}
+		preambleCache.killOverdueProcesses(testTime);
 
-		// Kill stale processes that are being used, but have timed out.
-		while (!usedPool.isEmpty() && usedPool.get(0).isOverdue(testTime)) {
-			usedPool.remove(0).close();
+		// Kill stale processes that are being used, but have timed out. Time
+		// limits vary, so the whole list is checked.
+		List<MaximaProcess> overdueProcesses = new ArrayList<MaximaProcess>();
+		synchronized (usedPool) {
+			for (MaximaProcess process : usedPool) {
+				if (process.isOverdue(testTime)) {
+					overdueProcesses.add(process);
+				}
+			}
+			usedPool.removeAll(overdueProcesses);
+		}
+		for (MaximaProcess process : overdueProcesses) {
+			process.close();
+		}
+
+		// Close sessions that have been left idle, or whose process is too old.
+		for (MaximaSession session : sessions.values()) {
+			if (session.isIdle(testTime, poolConfiguration.sessionIdleTimeout) ||
+					session.process.isOverdue(testTime)) {
+				closeSession(session);
+			}
 		}
 	}
 
 	/**
-	 * Maintenance task that updates the estimates that are used to manaage the pool.
+	 * Maintenance task that updates the estimates that are used to manaage the pool,
+	 * and adjusts the limit on processes starting up.
 	 */
 	private void updateEstimates() {
+		double slowdown = 1.0;
+		long startupTime = 0;
+		for (ProcessPool pool : processPools.values()) {
+			slowdown = Math.max(slowdown, pool.getStartupSlowdown());
+			startupTime = Math.max(startupTime, pool.getStartupTimeEstimate());
+		}
+		OperatingSystemMXBean osInfo = ManagementFactory.getOperatingSystemMXBean();
+		double load = osInfo.getSystemLoadAverage();
+		startupThrottle.adjust(System.currentTimeMillis(),
+				load < 0 ? -1 : load / osInfo.getAvailableProcessors(), slowdown, startupTime);
+
+		// Scheduled capacity is left out here, so that the policies do not
+		// learn to keep it once the window has closed.
+		long testTime = System.currentTimeMillis();
+		int minimumPoolSize = getMinimumPoolSize();
 		for (ProcessPool pool : processPools.values()) {
 			pool.updateDemandEstimate(poolConfiguration.movingAverageDataPoints);
+			pool.updateMemoryEstimate(poolConfiguration.movingAverageDataPoints);
+			pool.getSizingPolicy().update(testTime, pool, minimumPoolSize,
+					poolConfiguration.maximumAvailableProcesses);
+		}
+		for (PendingRoll roll : pendingRolls.values()) {
+			roll.pool.updateMemoryEstimate(poolConfiguration.movingAverageDataPoints);
 		}
 	}
 
@@ -267,21 +1351,38 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	 * it should be at.
 	 */
 	private void startMoreProcessesIfRequired() {
-		// TODO improve the sophistication of this. Git history has
-		// the algorithm it used to use when there was only one pool.
-		int poolCount = processPools.size();
 		for (Map.Entry<String, ProcessPool> entry : processPools.entrySet()) {
-			if (startupThrottle.availablePermits() == 0) {
-				break;
-			}
-
 			ProcessPool pool = entry.getValue();
-			if (pool.getAvailableProcessesCount() < poolConfiguration.minimumAvailableProcesses / poolCount + 1) {
-				startProcess(entry.getKey());
+			// Requests already waiting will take processes that are starting.
+			int required = getTargetPoolSize(entry.getKey(), pool) - pool.getAvailableProcessesCount() -
+					pool.getStartingCount() + pool.getWaitingCount();
+			for (int i = 0; i < required; i++) {
+				if (startupThrottle.availablePermits() == 0) {
+					return;
+				}
+				startProcess(pool);
 			}
 		}
 	}
 
+	/**
+	 * @return the number of processes each running pool should have, at least.
+	 * The overall minimum is shared between the running pools.
+	 */
+	private int getMinimumPoolSize() {
+		return poolConfiguration.minimumAvailableProcesses / Math.max(processPools.size(), 1) + 1;
+	}
+
+	/**
+	 * @param configurationName a configuration name.
+	 * @return the number of processes that pool should have, at least: its
+	 * share of the overall minimum, or more during scheduled capacity.
+	 */
+	private int getMinimumPoolSize(String configurationName) {
+		return Math.max(getMinimumPoolSize(),
+				getScheduledMinimum(configurationName, System.currentTimeMillis()));
+	}
+
 	/**
 	 * Get the pool configurations that are available on disc (or were, last
 	 * time we checked).
@@ -300,15 +1401,28 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 		return poolConfiguration.processConfigurations.get(configurationName);
 	}
 
+	/**
+	 * Get the configuration a running pool was started with, which may differ
+	 * from the one on disc, or no longer be on disc at all.
+	 * @param configurationName the pool configuration name.
+	 * @return the configuration, or null if the pool is not running.
+	 */
+	ProcessConfiguration getRunningProcessConfiguration(String configurationName) {
+		ProcessPool pool = processPools.get(configurationName);
+		return pool == null ? null : pool.getProcessConfiguration();
+	}
+
 	/**
 	 * Check a running configuration agains the configuration on disc (last time
 	 * we checked what was on disc.)
 	 * @param configurationName the name of a running configuration.
-	 * @return whether the configuration being run is the same as on disc.
+	 * @return whether the configuration being run is the same as on disc. True
+	 * if the pool is no longer running.
 	 */
 	boolean isConfigurationCurrent(String configurationName) {
-		return processPools.get(configurationName).getProcessConfiguration().equals(
-				getProcessConfiguration(configurationName));
+		ProcessConfiguration runningConfiguration = getRunningProcessConfiguration(configurationName);
+		return runningConfiguration == null ||
+				runningConfiguration.equals(getProcessConfiguration(configurationName));
 	}
 
 	/**
@@ -325,10 +1439,22 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 	 * Return information about the current state of a running pool.
 	 * @param configurationName the name of a running configuration.
 	 * @return a hash map where the keys are human-readable names, and,
-	 * and the values are string representations of those values.
+	 * and the values are string representations of those values. Empty if
+	 * the pool has stopped.
 	 */
 	Map<String, String> getPoolStatus(String configurationName) {
-		return processPools.get(configurationName).getStatus();
+		ProcessPool pool = processPools.get(configurationName);
+		if (pool == null) {
+			return new LinkedHashMap<String, String>();
+		}
+		Map<String, String> status = pool.getStatus();
+		status.put("Saved image", imageBuilder.describe(pool.getProcessConfiguration()));
+		PendingRoll roll = pendingRolls.get(configurationName);
+		if (roll != null) {
+			status.put("Rolling to the new configuration", roll.pool.getAvailableProcessesCount() +
+					" of " + roll.target + " processes ready");
+		}
+		return status;
 	}
 
 	/**
@@ -340,14 +1466,70 @@ public class PoolCoordinator implements UpkeepThread.Maintainable {
 
 		Map<String, String> status = new LinkedHashMap<String, String>();
 
-		status.put("Processes starting up", "" +
-				(poolConfiguration.startupLimit - startupThrottle.availablePermits()));
+		status.put("Processes starting up", "" + startupThrottle.getStartingCount());
+		status.put("Current limit on processes starting up", startupThrottle.describe());
+		status.put("Pools refilled straight away after running low", "" + refillCount.get());
 		status.put("Processes in use", "" + usedPool.size());
 		status.put("Total number of processes started", "" + startCount);
+		status.put("Ready for traffic", isReady() ? "Yes" : "No");
+		status.put("Open sessions", sessions.size() + " (limit " + poolConfiguration.sessionLimit + ")");
+		status.put("Stray child processes killed", "" + OrphanReaper.getReapedCount());
+		status.put("Pools stopped for being idle", "" + idleStopCount.get());
+		long testTime = System.currentTimeMillis();
+		for (CapacityWindow window : poolConfiguration.capacityWindows) {
+			if (window.end > testTime) {
+				status.put("Scheduled capacity " + window.name, window.describe() +
+						(activeWindows.contains(window.name) ? " (filling the pools now)" : ""));
+			}
+		}
+		status.put("Processes released after scheduled capacity", "" + scheduledReleaseCount.get());
+		if (poolState != null && poolState.getLastSaveTime() > 0) {
+			status.put("Pool state last saved", StringUtils.formatTimestamp(
+					new Date(poolState.getLastSaveTime())));
+		}
+		status.put("Memory used by processes", StringUtils.formatBytes(getProcessMemory()) +
+				(poolConfiguration.memoryBudget > 0 ? " (budget " +
+				StringUtils.formatBytes(poolConfiguration.memoryBudget) + ")" : ""));
+		status.put("Process starts skipped for lack of memory", "" + memoryRefusals.get());
+		status.put("Timed-out sessions kept by interrupting", interruptsSucceeded.get() +
+				" (" + interruptsFailed.get() + " could not be interrupted)");
+		preambleCache.addStatus(status);
 
 		return status;
 	}
 
+	/**
+	 * Return metrics about the collection of pools, and each running pool,
+	 * for monitoring systems.
+	 * @return a hash map where the keys are metric names with labels, in the
+	 * Prometheus text format, and the values are the values.
+	 */
+	Map<String, String> getMetrics() {
+
+		Map<String, String> metrics = new LinkedHashMap<String, String>();
+
+		metrics.put("maximapool_processes_starting", "" + startupThrottle.getStartingCount());
+		metrics.put("maximapool_startup_limit", "" + startupThrottle.getLimit());
+		metrics.put("maximapool_low_water_refills_total", "" + refillCount.get());
+		metrics.put("maximapool_processes_in_use", "" + usedPool.size());
+		metrics.put("maximapool_ready", isReady() ? "1" : "0");
+		metrics.put("maximapool_sessions_open", "" + sessions.size());
+		metrics.put("maximapool_orphans_reaped_total", "" + OrphanReaper.getReapedCount());
+		metrics.put("maximapool_idle_pool_stops_total", "" + idleStopCount.get());
+		metrics.put("maximapool_scheduled_windows_active", "" + activeWindows.size());
+		metrics.put("maximapool_scheduled_releases_total", "" + scheduledReleaseCount.get());
+		metrics.put("maximapool_process_memory_bytes", "" + getProcessMemory());
+		metrics.put("maximapool_memory_refusals_total", "" + memoryRefusals.get());
+		metrics.put("maximapool_session_interrupts_total{result=\"kept\"}", "" + interruptsSucceeded.get());
+		metrics.put("maximapool_session_interrupts_total{result=\"killed\"}", "" + interruptsFailed.get());
+
+		for (Map.Entry<String, ProcessPool> entry : processPools.entrySet()) {
+			entry.getValue().addMetrics(metrics, "version=\"" + entry.getKey() + "\"");
+		}
+
+		return metrics;
+	}
+
 	/**
 	 * Describe the configuration of the collection of pools.
 	 * @return a hash map where the keys are human-readable names,
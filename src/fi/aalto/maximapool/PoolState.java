@@ -0,0 +1,193 @@
+package fi.aalto.maximapool;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+import fi.aalto.utils.StringUtils;
+
+
+/**
+ * Saves what the pools have learned about each version (the demand, how long
+ * processes take to start, how much memory they use, and how many processes
+ * the pool wanted) to a small file, and gives it back to the new pools after
+ * a restart, so that they are sized for the real traffic straight away rather
+ * than from the estimates in process.conf.
+ *
+ * The file is a properties file, with keys like 2017121800.demand. Saved
+ * values older than the maximum age are ignored.
+ */
+class PoolState {
+
+	/** The file the state is saved in. */
+	private final File file;
+
+	/** Saved state older than this (ms) is ignored. */
+	private final long maximumAge;
+
+	/** The saved values that have not been given to a pool yet. */
+	private Properties saved = new Properties();
+
+	/** When the state was last saved. (System.currentTimeMillis();) */
+	private long lastSaveTime = 0;
+
+	/** Whether a failure to save has been reported, so it is only logged once. */
+	private boolean saveFailureReported = false;
+
+	/**
+	 * Constructor.
+	 * @param file the file the state is saved in.
+	 * @param maximumAge saved state older than this (ms) is ignored.
+	 */
+	PoolState(File file, long maximumAge) {
+		this.file = file;
+		this.maximumAge = maximumAge;
+	}
+
+	/**
+	 * Read the saved state, if there is any, and it is recent enough.
+	 */
+	synchronized void load() {
+		if (!file.isFile()) {
+			return;
+		}
+
+		Properties properties = new Properties();
+		try {
+			FileReader reader = new FileReader(file);
+			properties.load(reader);
+			reader.close();
+		} catch (IOException e) {
+			System.out.println("Cannot read the saved pool state from " + file + ": " + e.getMessage());
+			return;
+		}
+
+		long savedTime;
+		try {
+			savedTime = Long.parseLong(properties.getProperty("saved", "0"));
+		} catch (NumberFormatException e) {
+			System.out.println("Ignoring the saved pool state in " + file + ", since it is damaged.");
+			return;
+		}
+		if (System.currentTimeMillis() - savedTime > maximumAge) {
+			System.out.println("Ignoring the saved pool state from " +
+					StringUtils.formatTimestamp(new Date(savedTime)) + ", since it is too old.");
+			return;
+		}
+		System.out.println("Using the pool state saved at " +
+				StringUtils.formatTimestamp(new Date(savedTime)) + ".");
+		saved = properties;
+	}
+
+	/**
+	 * Give a new pool the saved state for its configuration, if there is any.
+	 * Call forget once the pool is in use, so that each configuration's state
+	 * is only used once. If the values cannot be read, the file is damaged, so
+	 * all the saved state is ignored. The best start-up time is not restored,
+	 * since it is only meaningful on the machine and load it was measured on;
+	 * the pool measures it afresh. (Files from older versions may have it.)
+	 * @param configurationName the name of the pool's configuration.
+	 * @param pool the new pool.
+	 * @param dataPoints the number of data points the averages are over.
+	 */
+	synchronized void restore(String configurationName, ProcessPool pool, int dataPoints) {
+		String prefix = configurationName + ".";
+		if (saved.getProperty(prefix + "demand") == null) {
+			return;
+		}
+
+		double demand;
+		long startupTime;
+		long memory;
+		int target;
+		try {
+			demand = Double.parseDouble(saved.getProperty(prefix + "demand"));
+			startupTime = Long.parseLong(saved.getProperty(prefix + "startup.time"));
+			memory = Long.parseLong(saved.getProperty(prefix + "memory", "0"));
+			target = Integer.parseInt(saved.getProperty(prefix + "target", "0"));
+		} catch (NumberFormatException e) {
+			System.out.println("Ignoring the saved pool state in " + file + ", since it is damaged.");
+			saved = new Properties();
+			return;
+		}
+
+		pool.restoreEstimates(demand, startupTime, memory, dataPoints);
+		pool.getSizingPolicy().restoreTarget(target);
+	}
+
+	/**
+	 * Drop the saved state for a configuration, once it has been given to the
+	 * pool that is used.
+	 * @param configurationName the name of the pool's configuration.
+	 */
+	synchronized void forget(String configurationName) {
+		String prefix = configurationName + ".";
+		for (String key : saved.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				saved.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Save the state of some pools, if it has not been saved for a while.
+	 * @param testTime time to consider as now.
+	 * @param interval time (ms) between saves.
+	 * @param pools configuration name => pool.
+	 */
+	synchronized void saveIfDue(long testTime, long interval, Map<String, ProcessPool> pools) {
+		if (testTime - lastSaveTime < interval) {
+			return;
+		}
+		save(testTime, pools);
+	}
+
+	/**
+	 * Save the state of some pools. The file is written to a temporary file,
+	 * which is then moved into place, so a crash cannot leave half a file.
+	 * @param testTime time to consider as now.
+	 * @param pools configuration name => pool.
+	 */
+	synchronized void save(long testTime, Map<String, ProcessPool> pools) {
+		lastSaveTime = testTime;
+
+		Properties properties = new Properties();
+		properties.setProperty("saved", "" + testTime);
+		for (Map.Entry<String, ProcessPool> entry : pools.entrySet()) {
+			String prefix = entry.getKey() + ".";
+			ProcessPool pool = entry.getValue();
+			properties.setProperty(prefix + "demand", "" + pool.getDemandEstimate());
+			properties.setProperty(prefix + "startup.time", "" + pool.getStartupTimeEstimate());
+			properties.setProperty(prefix + "memory", "" + pool.getMemoryEstimate());
+			properties.setProperty(prefix + "target", "" + pool.getSizingPolicy().getTargetToSave());
+		}
+
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		try {
+			FileWriter writer = new FileWriter(temporaryFile);
+			properties.store(writer, "MaximaPool state. Written automatically, do not edit.");
+			writer.close();
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			saveFailureReported = false;
+		} catch (IOException e) {
+			if (!saveFailureReported) {
+				System.out.println("Cannot save the pool state to " + file + ": " + e.getMessage());
+				saveFailureReported = true;
+			}
+		}
+	}
+
+	/**
+	 * @return when the state was last saved, or 0 if it has not been.
+	 */
+	synchronized long getLastSaveTime() {
+		return lastSaveTime;
+	}
+}
@@ -0,0 +1,17 @@
+package fi.aalto.maximapool;
+
+
+/**
+ * Thrown when a process is requested from a pool that cannot supply one,
+ * because its processes are failing to start.
+ */
+class PoolUnavailableException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message why the pool is unavailable.
+	 */
+	PoolUnavailableException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,285 @@
+package fi.aalto.maximapool;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Keeps the preambles that clients have registered, and, for each one, a
+ * small pool of processes per configuration that have already evaluated it.
+ *
+ * A preamble is a block of Maxima code that many requests start with. It is
+ * identified by the SHA-256 hash of its text. When there are more than
+ * maximumSize preambles, the least recently used one is forgotten, and its
+ * processes are killed.
+ */
+class PreambleCache {
+
+	/**
+	 * A registered preamble, and its processes.
+	 */
+	private static class Preamble {
+		/** The Maxima code. */
+		final String text;
+
+		/** Processes that have evaluated this preamble, keyed by configuration name. */
+		final Map<String, LinkedList<MaximaProcess>> processes =
+				new LinkedHashMap<String, LinkedList<MaximaProcess>>();
+
+		/** Number of processes being started, keyed by configuration name. */
+		final Map<String, Integer> starting = new LinkedHashMap<String, Integer>();
+
+		Preamble(String text) {
+			this.text = text;
+		}
+	}
+
+	/** The maximum number of preambles to remember. */
+	private final int maximumSize;
+
+	/** The preambles, keyed by hash, in least recently used order. */
+	private final LinkedHashMap<String, Preamble> preambles;
+
+	/**
+	 * Constructor.
+	 * @param maximumSize the maximum number of preambles to remember.
+	 */
+	PreambleCache(int maximumSize) {
+		this.maximumSize = maximumSize;
+		preambles = new LinkedHashMap<String, Preamble>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Preamble> eldest) {
+				if (size() <= PreambleCache.this.maximumSize) {
+					return false;
+				}
+				killProcesses(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Register a preamble.
+	 * @param text the Maxima code.
+	 * @return the hash that identifies it.
+	 */
+	synchronized String register(String text) {
+		String hash = hash(text);
+		if (!preambles.containsKey(hash)) {
+			preambles.put(hash, new Preamble(text));
+		}
+		return hash;
+	}
+
+	/**
+	 * @param hash a preamble hash.
+	 * @return the text of that preamble, or null if it is not known.
+	 */
+	synchronized String getText(String hash) {
+		Preamble preamble = preambles.get(hash);
+		if (preamble == null) {
+			return null;
+		}
+		return preamble.text;
+	}
+
+	/**
+	 * Take a process that has already evaluated a preamble.
+	 * @param configurationName the configuration the process should use.
+	 * @param hash the preamble hash.
+	 * @return a process, or null if none is available.
+	 */
+	synchronized MaximaProcess takeProcess(String configurationName, String hash) {
+		Preamble preamble = preambles.get(hash);
+		if (preamble == null) {
+			return null;
+		}
+		LinkedList<MaximaProcess> processes = preamble.processes.get(configurationName);
+		if (processes == null) {
+			return null;
+		}
+		return processes.poll();
+	}
+
+	/**
+	 * Work out how many more processes should be started for a preamble, and
+	 * record that they are starting.
+	 * @param configurationName the configuration.
+	 * @param hash the preamble hash.
+	 * @param target the number of processes to keep for each preamble.
+	 * @return the number of processes the caller should start.
+	 */
+	synchronized int reserveStarts(String configurationName, String hash, int target) {
+		Preamble preamble = preambles.get(hash);
+		if (preamble == null) {
+			return 0;
+		}
+		int required = target - countProcesses(preamble, configurationName) -
+				countStarting(preamble, configurationName);
+		if (required <= 0) {
+			return 0;
+		}
+		preamble.starting.put(configurationName, countStarting(preamble, configurationName) + required);
+		return required;
+	}
+
+	/**
+	 * Add a process that has evaluated a preamble. If the preamble has been
+	 * forgotten in the meantime, the process is killed.
+	 * @param configurationName the configuration the process uses.
+	 * @param hash the preamble hash.
+	 * @param process the process, or null if starting it failed.
+	 */
+	synchronized void addProcess(String configurationName, String hash, MaximaProcess process) {
+		Preamble preamble = preambles.get(hash);
+		if (preamble == null) {
+			if (process != null) {
+				process.kill();
+			}
+			return;
+		}
+
+		preamble.starting.put(configurationName,
+				Math.max(countStarting(preamble, configurationName) - 1, 0));
+		if (process == null) {
+			return;
+		}
+
+		LinkedList<MaximaProcess> processes = preamble.processes.get(configurationName);
+		if (processes == null) {
+			processes = new LinkedList<MaximaProcess>();
+			preamble.processes.put(configurationName, processes);
+		}
+		processes.add(process);
+	}
+
+	/**
+	 * Maintenance task that kills processes that are too old.
+	 * @param testTime time to consider as now.
+	 */
+	synchronized void killOverdueProcesses(long testTime) {
+		for (Preamble preamble : preambles.values()) {
+			for (List<MaximaProcess> processes : preamble.processes.values()) {
+				for (MaximaProcess process : new LinkedList<MaximaProcess>(processes)) {
+					if (process.isOverdue(testTime)) {
+						processes.remove(process);
+						process.kill();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Kill the processes for a configuration, for example because its pool was stopped.
+	 * @param configurationName the configuration.
+	 */
+	synchronized void killProcesses(String configurationName) {
+		for (Preamble preamble : preambles.values()) {
+			List<MaximaProcess> processes = preamble.processes.remove(configurationName);
+			if (processes != null) {
+				for (MaximaProcess process : processes) {
+					process.kill();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Kill all the processes, and forget all the preambles.
+	 */
+	synchronized void destroy() {
+		for (Preamble preamble : preambles.values()) {
+			killProcesses(preamble);
+		}
+		preambles.clear();
+	}
+
+	/**
+	 * Add information about the cache to a status map.
+	 * @param status a hash map where the keys are human-readable names,
+	 * and the values are string representations of those values.
+	 */
+	synchronized void addStatus(Map<String, String> status) {
+		int processCount = 0;
+		for (Preamble preamble : preambles.values()) {
+			for (List<MaximaProcess> processes : preamble.processes.values()) {
+				processCount += processes.size();
+			}
+		}
+		status.put("Registered preambles", preambles.size() + " (limit " + maximumSize + ")");
+		status.put("Processes with a preamble evaluated", "" + processCount);
+	}
+
+	/**
+	 * @param configurationName a configuration.
+	 * @return the number of processes for that configuration, ready or
+	 * starting, over all the preambles.
+	 */
+	synchronized int countProcesses(String configurationName) {
+		int count = 0;
+		for (Preamble preamble : preambles.values()) {
+			count += countProcesses(preamble, configurationName) + countStarting(preamble, configurationName);
+		}
+		return count;
+	}
+
+	/**
+	 * @param preamble a preamble.
+	 * @param configurationName a configuration.
+	 * @return the number of ready processes.
+	 */
+	private int countProcesses(Preamble preamble, String configurationName) {
+		List<MaximaProcess> processes = preamble.processes.get(configurationName);
+		return processes == null ? 0 : processes.size();
+	}
+
+	/**
+	 * @param preamble a preamble.
+	 * @param configurationName a configuration.
+	 * @return the number of processes starting.
+	 */
+	private int countStarting(Preamble preamble, String configurationName) {
+		Integer starting = preamble.starting.get(configurationName);
+		return starting == null ? 0 : starting;
+	}
+
+	/**
+	 * Kill all the processes for a preamble.
+	 * @param preamble the preamble.
+	 */
+	private void killProcesses(Preamble preamble) {
+		for (List<MaximaProcess> processes : preamble.processes.values()) {
+			for (MaximaProcess process : processes) {
+				process.kill();
+			}
+		}
+		preamble.processes.clear();
+	}
+
+	/**
+	 * Compute the hash that identifies a preamble.
+	 * @param text the Maxima code.
+	 * @return the SHA-256 hash of the UTF-8 text, in hex.
+	 */
+	static String hash(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					text.getBytes(StandardCharsets.UTF_8));
+			StringBuffer hex = new StringBuffer(64);
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
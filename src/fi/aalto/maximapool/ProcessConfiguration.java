@@ -18,6 +18,12 @@ class ProcessConfiguration {
 	 */
 	boolean autoStart = false;
 
+	/**
+	 * The folder this configuration was read from. Not part of the configuration
+	 * proper, so not considered by equals.
+	 */
+	File configurationDirectory = null;
+
 	/**
 	 * The folder to use at the current working directory for the process.
 	 */
@@ -61,6 +67,33 @@ class ProcessConfiguration {
 	 */
 	boolean fileHandling = false;
 
+	/**
+	 * Whether to launch each process in a new session, using setsid, so that
+	 * anything it starts, such as gnuplot, can be found and killed after it.
+	 */
+	boolean newSession = false;
+
+	/**
+	 * If greater than 0, processes are launched with this nice level, so that
+	 * starting up does not slow down evaluations, and are put back to normal
+	 * priority when taken from the pool. Going back up needs CAP_SYS_NICE
+	 * (or a suitable RLIMIT_NICE) for the servlet container's user.
+	 */
+	int warmupNice = 0;
+
+	/**
+	 * If not empty, processes are launched pinned to this list of CPUs (in the
+	 * form taskset -c takes, e.g. 0-3), and are re-pinned to activeCpus when
+	 * taken from the pool.
+	 */
+	String warmupCpus = "";
+
+	/**
+	 * The CPUs processes taken from the pool may run on, if warmupCpus is set.
+	 * Empty means all of them.
+	 */
+	String activeCpus = "";
+
 	/**
 	 * If we are doing file handling, this template gives the command to send to
 	 * Maxima to tell it the paths to use.
@@ -80,6 +113,19 @@ class ProcessConfiguration {
 	 */
 	long maximumLifetime = 60000000;
 
+	/**
+	 * Each process's lifetime is shortened by a random amount up to this (ms),
+	 * so that processes started together do not all expire together.
+	 */
+	long lifetimeJitter = 0;
+
+	/**
+	 * Whether to start a replacement for a process shortly before its lifetime
+	 * is up, and only kill it once the replacement is ready, so that the
+	 * number of processes in the pool does not drop.
+	 */
+	boolean rollingReplacement = true;
+
 	/**
 	 * The additional timeout (ms) that is added to lifeTime once a process
 	 * receives a command. Avoids problems where a processe receives a command
@@ -87,6 +133,37 @@ class ProcessConfiguration {
 	 */
 	long executionTimeout = 30000;
 
+	/**
+	 * When evaluating input in a session times out, the process is sent SIGINT,
+	 * and if it responds to a probe within this time (ms), the session
+	 * continues. 0 means the process is killed straight away.
+	 */
+	long interruptGracePeriod = 0;
+
+	/**
+	 * If set, a command that makes a started process save an image of itself,
+	 * with extraFileToLoad already loaded, to the file %IMAGE%, and exit.
+	 * Processes are then launched from that image using imageCommandLine.
+	 */
+	String imageSaveCommand = null;
+
+	/**
+	 * The command line to use to start a process from a saved image. %IMAGE%
+	 * is replaced by the image file.
+	 */
+	String imageCommandLine = "%IMAGE%";
+
+	/**
+	 * The output to look for so we know a process started from a saved image
+	 * is ready for use.
+	 */
+	String imageReadyOutput = processHasStartedOutput;
+
+	/**
+	 * The timeout (ms) for building a saved image, including start-up.
+	 */
+	long imageBuildTimeout = 120000;
+
 	/**
 	 * Initial estimate for the start-up time (ms) for a process.
 	 */
@@ -113,8 +190,22 @@ class ProcessConfiguration {
 		}
 		processIsReadyOutput = properties.getProperty("process.ready", processIsReadyOutput);
 
+		imageSaveCommand = properties.getProperty("image.save.command", imageSaveCommand);
+		if (imageSaveCommand != null && imageSaveCommand.trim().length() == 0) {
+			imageSaveCommand = null;
+		}
+		imageCommandLine = properties.getProperty("image.command.line", imageCommandLine);
+		imageReadyOutput = properties.getProperty("image.ready", processHasStartedOutput);
+		imageBuildTimeout = Long.parseLong(properties.getProperty(
+				"image.build.timeout", "" + imageBuildTimeout));
+
 		fileHandling = properties.getProperty("file.handling", "false").equalsIgnoreCase("true");
+		newSession = properties.getProperty("new.session", "false").equalsIgnoreCase("true");
 		pathCommandTemplate = properties.getProperty("path.command", pathCommandTemplate);
+		warmupNice = Integer.parseInt(properties.getProperty(
+				"warmup.nice", "" + warmupNice));
+		warmupCpus = properties.getProperty("warmup.cpus", warmupCpus).trim();
+		activeCpus = properties.getProperty("active.cpus", activeCpus).trim();
 
 		startupTimeout = Long.parseLong(properties.getProperty(
 				"startup.timeout", "" + startupTimeout));
@@ -122,6 +213,11 @@ class ProcessConfiguration {
 				"execution.timeout", "" + executionTimeout));
 		maximumLifetime = Long.parseLong(properties.getProperty(
 				"maximum.lifetime", "" + maximumLifetime));
+		lifetimeJitter = Long.parseLong(properties.getProperty(
+				"lifetime.jitter", "" + lifetimeJitter));
+		rollingReplacement = properties.getProperty("lifetime.rolling", "true").equalsIgnoreCase("true");
+		interruptGracePeriod = Long.parseLong(properties.getProperty(
+				"interrupt.grace", "" + interruptGracePeriod));
 
 		startupTimeInitialEstimate = Long.parseLong(properties.getProperty(
 				"startup.time.estimate", "" + startupTimeInitialEstimate));
@@ -154,17 +250,69 @@ class ProcessConfiguration {
 		}
 		values.put("Started test string", processHasStartedOutput);
 		values.put("Loaded test string", processIsReadyOutput);
+		if (imageSaveCommand != null) {
+			values.put("Saved image command", imageSaveCommand);
+			values.put("Saved image command-line", imageCommandLine);
+			values.put("Saved image ready test string", imageReadyOutput);
+		}
 		values.put("File handling", fileHandling ? "On" : "Off");
+		values.put("Run each process in its own session", newSession ? "Yes" : "No");
 		values.put("File paths template", pathCommandTemplate);
+		values.put("Nice level while warming up", warmupNice > 0 ? "" + warmupNice : "Normal");
+		if (warmupCpus.length() > 0) {
+			values.put("CPUs used while warming up", warmupCpus);
+			values.put("CPUs used once taken", activeCpus.length() > 0 ? activeCpus : "All");
+		}
 		values.put("Startup time limit", startupTimeout + " ms");
 		values.put("Execution extra time limit", executionTimeout + " ms");
 		values.put("Process life time limit", maximumLifetime + " ms");
+		values.put("Random reduction in life time", "up to " + lifetimeJitter + " ms");
+		values.put("Replace processes before they expire", rollingReplacement ? "Yes" : "No");
+		values.put("Grace period after interrupting a timed-out session",
+				interruptGracePeriod > 0 ? interruptGracePeriod + " ms" : "Off");
 		values.put("Initial estimate for the process startup time", startupTimeInitialEstimate + " ms");
 		values.put("Initial estimate for demand", demandInitialEstimate + " Hz");
 
 		return values;
 	}
 
+	/**
+	 * Make the configuration used to launch processes from a saved image. It
+	 * is the same as this one, except that the command line starts the image,
+	 * and there is no extra file to load, since that is already in the image.
+	 * @param image the saved image file.
+	 * @return the new configuration.
+	 */
+	ProcessConfiguration forImage(File image) {
+		ProcessConfiguration imageConfiguration = new ProcessConfiguration();
+
+		imageConfiguration.autoStart = autoStart;
+		imageConfiguration.configurationDirectory = configurationDirectory;
+		imageConfiguration.workingDirectory = workingDirectory;
+		imageConfiguration.commandLine = imageCommandLine.replace("%IMAGE%", image.getPath());
+		imageConfiguration.environment = environment;
+		imageConfiguration.processHasStartedOutput = imageReadyOutput;
+		imageConfiguration.extraFileToLoad = null;
+		imageConfiguration.processIsReadyOutput = imageReadyOutput;
+		imageConfiguration.killString = killString;
+		imageConfiguration.fileHandling = fileHandling;
+		imageConfiguration.newSession = newSession;
+		imageConfiguration.pathCommandTemplate = pathCommandTemplate;
+		imageConfiguration.warmupNice = warmupNice;
+		imageConfiguration.warmupCpus = warmupCpus;
+		imageConfiguration.activeCpus = activeCpus;
+		imageConfiguration.startupTimeout = startupTimeout;
+		imageConfiguration.maximumLifetime = maximumLifetime;
+		imageConfiguration.lifetimeJitter = lifetimeJitter;
+		imageConfiguration.rollingReplacement = rollingReplacement;
+		imageConfiguration.executionTimeout = executionTimeout;
+		imageConfiguration.interruptGracePeriod = interruptGracePeriod;
+		imageConfiguration.startupTimeInitialEstimate = startupTimeInitialEstimate;
+		imageConfiguration.demandInitialEstimate = demandInitialEstimate;
+
+		return imageConfiguration;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -175,10 +323,19 @@ class ProcessConfiguration {
 		temp = Double.doubleToLongBits(demandInitialEstimate);
 		result = prime * result + (int) (temp ^ (temp >>> 32));
 		result = prime * result + (int) (executionTimeout ^ (executionTimeout >>> 32));
+		result = prime * result + (int) (interruptGracePeriod ^ (interruptGracePeriod >>> 32));
+		result = prime * result + ((imageSaveCommand == null) ? 0 : imageSaveCommand.hashCode());
+		result = prime * result + imageCommandLine.hashCode();
 		result = prime * result + ((extraFileToLoad == null) ? 0 : extraFileToLoad.hashCode());
 		result = prime * result + (fileHandling ? 1231 : 1237);
+		result = prime * result + (newSession ? 1231 : 1237);
+		result = prime * result + warmupNice;
+		result = prime * result + warmupCpus.hashCode();
+		result = prime * result + activeCpus.hashCode();
 		result = prime * result + killString.hashCode();
 		result = prime * result + (int) (maximumLifetime ^ (maximumLifetime >>> 32));
+		result = prime * result + (int) (lifetimeJitter ^ (lifetimeJitter >>> 32));
+		result = prime * result + (rollingReplacement ? 1231 : 1237);
 		result = prime * result + ((pathCommandTemplate == null) ? 0 : pathCommandTemplate.hashCode());
 		result = prime * result + processHasStartedOutput.hashCode();
 		result = prime * result + ((processIsReadyOutput == null) ? 0 : processIsReadyOutput.hashCode());
@@ -218,6 +375,9 @@ class ProcessConfiguration {
 		if (executionTimeout != other.executionTimeout) {
 			return false;
 		}
+		if (interruptGracePeriod != other.interruptGracePeriod) {
+			return false;
+		}
 		if (extraFileToLoad == null) {
 			if (other.extraFileToLoad != null) {
 				return false;
@@ -228,6 +388,31 @@ class ProcessConfiguration {
 		if (fileHandling != other.fileHandling) {
 			return false;
 		}
+		if (newSession != other.newSession) {
+			return false;
+		}
+		if (warmupNice != other.warmupNice) {
+			return false;
+		}
+		if (!warmupCpus.equals(other.warmupCpus)) {
+			return false;
+		}
+		if (!activeCpus.equals(other.activeCpus)) {
+			return false;
+		}
+		if (imageSaveCommand == null) {
+			if (other.imageSaveCommand != null) {
+				return false;
+			}
+		} else if (!imageSaveCommand.equals(other.imageSaveCommand)) {
+			return false;
+		}
+		if (!imageCommandLine.equals(other.imageCommandLine)) {
+			return false;
+		}
+		if (!imageReadyOutput.equals(other.imageReadyOutput)) {
+			return false;
+		}
 		if (killString == null) {
 			if (other.killString != null) {
 				return false;
@@ -238,6 +423,12 @@ class ProcessConfiguration {
 		if (maximumLifetime != other.maximumLifetime) {
 			return false;
 		}
+		if (lifetimeJitter != other.lifetimeJitter) {
+			return false;
+		}
+		if (rollingReplacement != other.rollingReplacement) {
+			return false;
+		}
 		if (pathCommandTemplate == null) {
 			if (other.pathCommandTemplate != null) {
 				return false;
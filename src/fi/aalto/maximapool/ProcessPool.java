@@ -1,15 +1,24 @@
 package fi.aalto.maximapool;
 
+import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.aalto.utils.Histogram;
+import fi.aalto.utils.StringUtils;
 
 
 /**
@@ -21,31 +30,149 @@ import java.util.concurrent.LinkedBlockingDeque;
  */
 public class ProcessPool {
 
+	/**
+	 * Number of recent values kept by each of the histograms.
+	 */
+	private static final int HISTOGRAM_SIZE = 1000;
+
 	/**
 	 * The configuration for the processes we look after.
 	 */
 	private ProcessConfiguration processConfiguration;
 
+	/**
+	 * The configuration actually used to launch processes. The same as
+	 * processConfiguration, unless we are using a saved image.
+	 */
+	private volatile ProcessConfiguration launchConfiguration;
+
 	/**
 	 * Used to create processes of our type..
 	 */
-	private ProcessBuilder processBuilder;
+	private volatile ProcessBuilder processBuilder;
+
+	/**
+	 * The saved image processes are launched from, if any.
+	 */
+	private volatile File image = null;
+
+	/**
+	 * A saved image that processes failed to start from, and that has not yet
+	 * been collected by takeFailedImage.
+	 */
+	private File failedImage = null;
 
 	/**
 	 * Estimated startup time (ms).
 	 */
 	private long startupTimeEstimate = 2000;
 
+	/**
+	 * The lowest average of measured start-up times so far (ms), or 0 before
+	 * there is one. It creeps back up towards the current average, so that a
+	 * lasting change in how long processes take to start becomes the new
+	 * normal.
+	 */
+	private long bestStartupTimeEstimate = 0;
+
+	/**
+	 * Whether the first entry in startupTimeHistory is a seed (the configured
+	 * or restored estimate) rather than a measured start-up time.
+	 */
+	private boolean startupTimeSeeded = true;
+
+	/**
+	 * The number of measured start-up times needed before they are taken as
+	 * the best.
+	 */
+	private static final int BEST_STARTUP_MINIMUM_STARTS = 3;
+
 	/**
 	 * Estimated request frequency (Hz).
 	 */
 	private double demandEstimate = 0.001;
 
+	/**
+	 * Estimated memory used by each process (bytes), or 0 if not known yet.
+	 */
+	private volatile long memoryEstimate = 0;
+
 	/**
 	 * The pool for ready processes.
 	 */
 	private BlockingDeque<MaximaProcess> availableProcesses = new LinkedBlockingDeque<MaximaProcess>();
 
+	/**
+	 * Processes in availableProcesses that are near the end of their lifetime,
+	 * and will be killed as replacements arrive. Oldest first.
+	 */
+	private List<MaximaProcess> retiringProcesses = new LinkedList<MaximaProcess>();
+
+	/**
+	 * The number of processes that have been asked for, but have not yet been
+	 * added to the pool (or failed).
+	 */
+	private AtomicInteger startingCount = new AtomicInteger();
+
+	/**
+	 * The number of requests waiting in getProcess, or in asyncWaiters.
+	 */
+	private AtomicInteger waitingCount = new AtomicInteger();
+
+	/**
+	 * Something waiting for a process from getProcessAsync. The methods are
+	 * called on whichever thread has the process, so they must not block.
+	 */
+	interface ProcessWaiter {
+		/**
+		 * @return whether a process is still wanted. If not, it goes to the
+		 * next waiter.
+		 */
+		boolean isWaiting();
+
+		/**
+		 * Called with the process, once isWaiting has returned true.
+		 * @param maximaProcess the process.
+		 */
+		void processReady(MaximaProcess maximaProcess);
+
+		/**
+		 * Called instead of processReady if no process is going to come.
+		 * @param e the reason.
+		 */
+		void failed(RuntimeException e);
+	}
+
+	/**
+	 * A waiter in asyncWaiters, and when it started waiting.
+	 */
+	private static class AsyncWaiter {
+		final ProcessWaiter waiter;
+		final long startTime = System.currentTimeMillis();
+
+		AsyncWaiter(ProcessWaiter waiter) {
+			this.waiter = waiter;
+		}
+	}
+
+	/**
+	 * Requests waiting for a process without holding a thread, oldest first.
+	 * New processes go to these before they go into availableProcesses.
+	 * Synchronise on this when changing it, or retired.
+	 */
+	private LinkedList<AsyncWaiter> asyncWaiters = new LinkedList<AsyncWaiter>();
+
+	/**
+	 * Set when this pool has been replaced by another. Requests waiting for a
+	 * process give up, so they can go to the new pool.
+	 */
+	private volatile boolean retired = false;
+
+	/**
+	 * Set by destroy.
+	 */
+	private volatile boolean destroyed = false;
+
 	/**
 	 * The number of processes this pool has created, just for reporting.
 	 */
@@ -63,26 +190,155 @@ public class ProcessPool {
 	private List<Long> requestTimeHistory = Collections
 			.synchronizedList(new LinkedList<Long>());
 
+	/**
+	 * When the most recent request was made. (System.currentTimeMillis();)
+	 */
+	private volatile long lastRequestTime = System.currentTimeMillis();
+
+	/**
+	 * Total startup times, for reporting percentiles.
+	 */
+	private Histogram startupTimes = new Histogram(HISTOGRAM_SIZE);
+
+	/**
+	 * Times for each of the MaximaProcess.STARTUP_PHASES, for reporting percentiles.
+	 */
+	private Histogram[] startupPhaseTimes = new Histogram[MaximaProcess.STARTUP_PHASES.length];
+
+	/**
+	 * Wall-clock time, CPU time and peak memory of evaluations, for reporting
+	 * percentiles.
+	 */
+	private Histogram evaluationTimes = new Histogram(HISTOGRAM_SIZE);
+	private Histogram evaluationCpuTimes = new Histogram(HISTOGRAM_SIZE);
+	private Histogram evaluationPeakMemory = new Histogram(HISTOGRAM_SIZE);
+
+	/**
+	 * Time requests waited in getProcess, for reporting percentiles.
+	 */
+	private Histogram waitTimes = new Histogram(HISTOGRAM_SIZE);
+
+	/**
+	 * Tracks start-up failures, and stops us starting processes that keep failing.
+	 */
+	private CircuitBreaker circuitBreaker;
+
+	/**
+	 * Decides how many processes this pool should have.
+	 */
+	private SizingPolicy sizingPolicy;
+
 	/**
 	 * Constructor.
 	 * @param processConfig the configuration for the processes we create.
+	 * @param circuitBreaker the circuit breaker to use for start-up failures.
+	 * @param sizingPolicy the policy that decides how many processes to keep.
 	 */
-	ProcessPool(ProcessConfiguration processConfig) {
+	ProcessPool(ProcessConfiguration processConfig, CircuitBreaker circuitBreaker,
+			SizingPolicy sizingPolicy) {
 
 		this.processConfiguration = processConfig;
+		this.launchConfiguration = processConfig;
+		this.circuitBreaker = circuitBreaker;
+		this.sizingPolicy = sizingPolicy;
 
 		// Initialise the datasets.
 		startupTimeHistory.add(processConfig.startupTimeInitialEstimate);
 		requestTimeHistory.add(System.currentTimeMillis());
+		for (int i = 0; i < startupPhaseTimes.length; i++) {
+			startupPhaseTimes[i] = new Histogram(HISTOGRAM_SIZE);
+		}
+
+		processBuilder = createProcessBuilder(processConfig);
+	}
 
-		// Set up the processBuilder
-		processBuilder = new ProcessBuilder();
-		processBuilder.command(processConfig.commandLine.split(" "));
+	/**
+	 * Make a ProcessBuilder for launching processes with a given configuration.
+	 * @param processConfig the configuration.
+	 * @return the ProcessBuilder.
+	 */
+	static ProcessBuilder createProcessBuilder(ProcessConfiguration processConfig) {
+		ProcessBuilder processBuilder = new ProcessBuilder();
+		List<String> command = new ArrayList<String>();
+		if (processConfig.warmupCpus.length() > 0) {
+			command.addAll(Arrays.asList("taskset", "-c", processConfig.warmupCpus));
+		}
+		if (processConfig.warmupNice > 0 && MaximaProcess.canRestorePriority(processConfig.warmupNice)) {
+			command.addAll(Arrays.asList("nice", "-n", "" + processConfig.warmupNice));
+		}
+		if (processConfig.newSession) {
+			command.add("setsid");
+		}
+		command.addAll(Arrays.asList(processConfig.commandLine.split(" ")));
+		processBuilder.command(command);
 		processBuilder.directory(processConfig.workingDirectory);
 		processBuilder.redirectErrorStream(true);
 		for (String key : processConfig.environment.keySet()) {
 			processBuilder.environment().put(key, processConfig.environment.get(key));
 		}
+		return processBuilder;
+	}
+
+	/**
+	 * Switch to launching new processes from a saved image. Processes already
+	 * in the pool are not affected.
+	 * @param imageFile the saved image.
+	 */
+	synchronized void useImage(File imageFile) {
+		ProcessConfiguration imageConfiguration = processConfiguration.forImage(imageFile);
+		processBuilder = createProcessBuilder(imageConfiguration);
+		launchConfiguration = imageConfiguration;
+		image = imageFile;
+		resetStartupTimes();
+	}
+
+	/**
+	 * @return the saved image processes are launched from, or null if the
+	 * normal command-line is being used.
+	 */
+	File getImage() {
+		return image;
+	}
+
+	/**
+	 * Go back to launching processes with the normal command-line, after a
+	 * process failed to start from a saved image.
+	 * @param imageFile the image the process was launched from.
+	 */
+	private synchronized void stopUsingImage(File imageFile) {
+		if (image == null || !image.equals(imageFile)) {
+			// Already done.
+			return;
+		}
+		processBuilder = createProcessBuilder(processConfiguration);
+		launchConfiguration = processConfiguration;
+		image = null;
+		failedImage = imageFile;
+		resetStartupTimes();
+	}
+
+	/**
+	 * Forget the measured start-up times, when processes start to be launched
+	 * differently. The current estimate is kept as a seed until new times are
+	 * measured.
+	 */
+	private void resetStartupTimes() {
+		synchronized (startupTimeHistory) {
+			startupTimeHistory.clear();
+			startupTimeHistory.add(startupTimeEstimate);
+			startupTimeSeeded = true;
+		}
+		bestStartupTimeEstimate = 0;
+	}
+
+	/**
+	 * @return the saved image that processes last failed to start from, or
+	 * null if there is none new since the last call.
+	 */
+	synchronized File takeFailedImage() {
+		File imageFile = failedImage;
+		failedImage = null;
+		return imageFile;
 	}
 
 	/**
@@ -90,25 +346,185 @@ public class ProcessPool {
 	 * be used any more.
 	 */
 	void destroy() {
-		for (MaximaProcess maximaProcess : availableProcesses) {
+		// Signal that we are destroyed. Stops more processes being added.
+		synchronized (asyncWaiters) {
+			retired = true;
+			destroyed = true;
+		}
+
+		MaximaProcess maximaProcess = availableProcesses.poll();
+		while (maximaProcess != null) {
 			maximaProcess.kill();
+			maximaProcess = availableProcesses.poll();
 		}
-		availableProcesses.clear();
+	}
 
-		// Signal that we are destroyed. Stops more processes being added.
-		availableProcesses = null;
+	/**
+	 * Mark this pool as replaced by another one. Requests waiting for a
+	 * process from this pool stop waiting, and getProcess returns null.
+	 * Asynchronous waiters must be taken with removeWaiters, and sent to the
+	 * new pool.
+	 */
+	void retire() {
+		synchronized (asyncWaiters) {
+			retired = true;
+		}
 	}
 
 	/**
-	 * Get a MaximaProcess from the pool.
+	 * Get a MaximaProcess from the pool, waiting for one if necessary.
+	 * @return a process, or null if the pool is empty and has been retired, in
+	 * which case the caller should try the pool that replaced it.
+	 * @throws PoolUnavailableException if the pool is empty and processes are
+	 * failing to start, so there is no point waiting.
 	 */
 	MaximaProcess getProcess() {
-		requestTimeHistory.add(System.currentTimeMillis());
+		recordRequest();
+		long startTime = System.currentTimeMillis();
+		waitingCount.incrementAndGet();
+		try {
+			MaximaProcess maximaProcess = waitForProcess();
+			if (maximaProcess != null) {
+				recordTake(System.currentTimeMillis() - startTime);
+			}
+			return maximaProcess;
+		} finally {
+			waitingCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get a MaximaProcess from the pool without waiting for one. If there is
+	 * none ready, the waiter is given the next one to be started, on the
+	 * thread that started it.
+	 * @param waiter what to give the process to.
+	 * @return false if the pool is empty and has been retired, in which case
+	 * the caller should try the pool that replaced it.
+	 * @throws PoolUnavailableException if the pool is empty and processes are
+	 * failing to start, so there is no point waiting.
+	 */
+	boolean getProcessAsync(ProcessWaiter waiter) {
+		recordRequest();
+		MaximaProcess maximaProcess;
+		synchronized (asyncWaiters) {
+			maximaProcess = availableProcesses.poll();
+			if (maximaProcess == null) {
+				if (retired) {
+					return false;
+				}
+				if (circuitBreaker.isTripped()) {
+					throw new PoolUnavailableException("Processes are failing to start. " +
+							circuitBreaker.describeFailure());
+				}
+				asyncWaiters.add(new AsyncWaiter(waiter));
+				waitingCount.incrementAndGet();
+				return true;
+			}
+		}
+
+		recordTake(0);
+		if (waiter.isWaiting()) {
+			waiter.processReady(maximaProcess);
+		} else {
+			offerProcess(maximaProcess);
+		}
+		return true;
+	}
+
+	/**
+	 * Give a ready process to the first asynchronous waiter that still wants
+	 * one, or if there is none, put it in the pool.
+	 * @param maximaProcess the process.
+	 * @return whether the process was put in the pool.
+	 */
+	private boolean offerProcess(MaximaProcess maximaProcess) {
+		while (true) {
+			AsyncWaiter asyncWaiter;
+			synchronized (asyncWaiters) {
+				asyncWaiter = asyncWaiters.poll();
+				if (asyncWaiter == null) {
+					availableProcesses.add(maximaProcess);
+					return true;
+				}
+				waitingCount.decrementAndGet();
+			}
+			if (asyncWaiter.waiter.isWaiting()) {
+				recordTake(System.currentTimeMillis() - asyncWaiter.startTime);
+				asyncWaiter.waiter.processReady(maximaProcess);
+				return false;
+			}
+			// That one has given up. Try the next.
+		}
+	}
+
+	/**
+	 * Take all the asynchronous waiters, for example because this pool has
+	 * been retired.
+	 * @return the waiters, oldest first.
+	 */
+	List<ProcessWaiter> removeWaiters() {
+		List<ProcessWaiter> waiters = new ArrayList<ProcessWaiter>();
+		synchronized (asyncWaiters) {
+			for (AsyncWaiter asyncWaiter : asyncWaiters) {
+				waiters.add(asyncWaiter.waiter);
+			}
+			waitingCount.addAndGet(-asyncWaiters.size());
+			asyncWaiters.clear();
+		}
+		return waiters;
+	}
+
+	/**
+	 * Maintenance task. Forget asynchronous waiters that have given up, and
+	 * if processes are failing to start, tell the rest that none is coming.
+	 */
+	void checkWaiters() {
+		List<ProcessWaiter> failed = new ArrayList<ProcessWaiter>();
+		synchronized (asyncWaiters) {
+			boolean tripped = circuitBreaker.isTripped();
+			for (Iterator<AsyncWaiter> i = asyncWaiters.iterator(); i.hasNext(); ) {
+				AsyncWaiter asyncWaiter = i.next();
+				if (tripped || !asyncWaiter.waiter.isWaiting()) {
+					i.remove();
+					waitingCount.decrementAndGet();
+					if (tripped) {
+						failed.add(asyncWaiter.waiter);
+					}
+				}
+			}
+		}
+
+		for (ProcessWaiter waiter : failed) {
+			waiter.failed(new PoolUnavailableException("Processes are failing to start. " +
+					circuitBreaker.describeFailure()));
+		}
+	}
 
+	/**
+	 * Record how long a request waited for a process, for the statistics and
+	 * the sizing policy.
+	 * @param waitTime the time (ms).
+	 */
+	private void recordTake(long waitTime) {
+		waitTimes.add(waitTime);
+		sizingPolicy.recordTake(waitTime, availableProcesses.size());
+	}
+
+	/**
+	 * Helper used by getProcess.
+	 */
+	private MaximaProcess waitForProcess() {
 		MaximaProcess maximaProcess = null;
 		while (maximaProcess == null) {
 			try {
-				maximaProcess = availableProcesses.take();
+				maximaProcess = availableProcesses.poll(100, TimeUnit.MILLISECONDS);
+				if (maximaProcess == null && retired) {
+					return null;
+				}
+				if (maximaProcess == null && circuitBreaker.isTripped()) {
+					throw new PoolUnavailableException("Processes are failing to start. " +
+							circuitBreaker.describeFailure());
+				}
 			} catch (InterruptedException e) {
 				// If we failed to get one, wait a bit.
 				e.printStackTrace();
@@ -123,26 +539,232 @@ public class ProcessPool {
 		return maximaProcess;
 	}
 
+	/**
+	 * Record that a process of this type was requested, for the demand estimate.
+	 * getProcess() does this automatically.
+	 */
+	void recordRequest() {
+		lastRequestTime = System.currentTimeMillis();
+		requestTimeHistory.add(lastRequestTime);
+	}
+
+	/**
+	 * Update the estimate of the memory each process uses, by sampling the
+	 * processes waiting in the pool. Each sample is averaged with the previous
+	 * estimate, weighted like the other moving averages.
+	 * @param dataPoints the number of data points the averages are over.
+	 */
+	void updateMemoryEstimate(int dataPoints) {
+		long total = 0;
+		int count = 0;
+		for (MaximaProcess process : availableProcesses) {
+			long size = process.getResidentSetSize();
+			if (size > 0) {
+				total += size;
+				count++;
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+
+		long sample = total / count;
+		if (memoryEstimate == 0) {
+			memoryEstimate = sample;
+		} else {
+			memoryEstimate += (sample - memoryEstimate) / Math.max(dataPoints, 1);
+		}
+	}
+
+	/**
+	 * @return the estimated memory used by each process (bytes), or 0 if that
+	 * is not known.
+	 */
+	long getMemoryEstimate() {
+		return memoryEstimate;
+	}
+
+	/**
+	 * Record the resources used by an evaluation done by one of our processes.
+	 * @param process a process that has finished doAndDie.
+	 */
+	void recordEvaluation(MaximaProcess process) {
+		if (process.getEvaluationTime() >= 0) {
+			evaluationTimes.add(process.getEvaluationTime());
+		}
+		if (process.getEvaluationCpuTime() >= 0) {
+			evaluationCpuTimes.add(process.getEvaluationCpuTime());
+		}
+		if (process.getEvaluationPeakMemory() >= 0) {
+			evaluationPeakMemory.add(process.getEvaluationPeakMemory() / 1024);
+		}
+	}
+
+	/**
+	 * @return when the last request was made, or when the pool was created if
+	 * there have been none. (System.currentTimeMillis();)
+	 */
+	long getLastRequestTime() {
+		return lastRequestTime;
+	}
+
 	/**
 	 * Low-level that creates a process in the current thread, and does not add
-	 * it to the pool.
+	 * it to the pool. The outcome is recorded by the circuit breaker.
 	 * @return the new process.
+	 * @throws RuntimeException if the process could not be started.
 	 */
 	MaximaProcess makeProcess() {
-		return new MaximaProcess(processBuilder, processConfiguration);
+		ProcessBuilder builder;
+		ProcessConfiguration configuration;
+		File launchImage;
+		synchronized (this) {
+			builder = processBuilder;
+			configuration = launchConfiguration;
+			launchImage = image;
+		}
+		try {
+			MaximaProcess maximaProcess = new MaximaProcess(builder, configuration);
+			maximaProcess.setOwner(this);
+			circuitBreaker.recordSuccess();
+			return maximaProcess;
+		} catch (RuntimeException e) {
+			circuitBreaker.recordFailure(System.currentTimeMillis(), e.getMessage());
+			if (launchImage != null) {
+				stopUsingImage(launchImage);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting for a process from this pool.
+	 */
+	int getWaitingCount() {
+		return waitingCount.get();
+	}
+
+	/**
+	 * Record that a process is going to be started, by a call to startProcess
+	 * that may have to wait for the start-up throttle.
+	 */
+	void markStarting() {
+		startingCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of processes that have been asked for, but are not
+	 * yet in the pool.
+	 */
+	int getStartingCount() {
+		return startingCount.get();
+	}
+
+	/**
+	 * Ask whether another process may be started now. This is false while the
+	 * circuit breaker is holding off after repeated start-up failures. If this
+	 * returns true, a process must then be made.
+	 * @return whether to start a process.
+	 */
+	boolean allowStart() {
+		return circuitBreaker.allowStart(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return whether processes for this pool are failing to start.
+	 */
+	boolean isFailing() {
+		return circuitBreaker.isTripped();
 	}
 
 	/**
 	 * Start a process asynchronously, and add it to the pool when done.
+	 * Call markStarting first.
 	 * @return the new process.
 	 */
 	void startProcess() {
 		processesStartedCount++;
 		long startTime = System.currentTimeMillis();
-		MaximaProcess mp = makeProcess();
-		startupTimeHistory.add(System.currentTimeMillis() - startTime);
+		MaximaProcess mp;
+		try {
+			mp = makeProcess();
+		} catch (RuntimeException e) {
+			startingCount.decrementAndGet();
+			System.out.println("Failed to start a process: " + e.getMessage());
+			return;
+		}
+		long startupTime = System.currentTimeMillis() - startTime;
+		startupTimeHistory.add(startupTime);
+		startupTimes.add(startupTime);
+		long[] phaseTimes = mp.getStartupPhaseTimes();
+		for (int i = 0; i < phaseTimes.length; i++) {
+			startupPhaseTimes[i].add(phaseTimes[i]);
+		}
+		if (memoryEstimate == 0) {
+			// Measure the first process straight away, rather than waiting for
+			// updateMemoryEstimate, since starts are held back until we know.
+			memoryEstimate = Math.max(mp.getResidentSetSize(), 0);
+		}
 		mp.deactivate();
-		availableProcesses.add(mp);
+		if (destroyed) {
+			// The pool was destroyed while this process was starting.
+			startingCount.decrementAndGet();
+			mp.kill();
+			return;
+		}
+		boolean pooled = offerProcess(mp);
+		startingCount.decrementAndGet();
+		if (!pooled) {
+			// A request was waiting for it, so the processes being replaced
+			// are still wanted.
+			return;
+		}
+		if (destroyed && availableProcesses.remove(mp)) {
+			// The pool was destroyed while this process was starting.
+			mp.kill();
+			return;
+		}
+		retireProcess();
+	}
+
+	/**
+	 * Called when a new process has been added to the pool. If there is a
+	 * process waiting to be replaced, kill it now.
+	 */
+	private void retireProcess() {
+		while (true) {
+			MaximaProcess oldProcess;
+			synchronized (retiringProcesses) {
+				if (retiringProcesses.isEmpty()) {
+					return;
+				}
+				oldProcess = retiringProcesses.remove(0);
+			}
+			if (availableProcesses.remove(oldProcess)) {
+				oldProcess.kill();
+				return;
+			}
+			// That one has been used, or has expired, already. Try the next.
+		}
+	}
+
+	/**
+	 * Kill ready processes beyond a given number, oldest first. Used to give
+	 * back capacity that was only wanted for a while.
+	 * @param count the number of ready processes to keep.
+	 * @return the number of processes killed.
+	 */
+	int trimAvailableProcesses(int count) {
+		int killed = 0;
+		while (availableProcesses.size() > count) {
+			MaximaProcess process = availableProcesses.poll();
+			if (process == null) {
+				break;
+			}
+			process.kill();
+			killed++;
+		}
+		return killed;
 	}
 
 	/**s
@@ -151,14 +773,51 @@ public class ProcessPool {
 	 */
 	void killOverdueProcesses(long testTime) {
 
-		// Kill off old ones
-		MaximaProcess process = availableProcesses.poll();
-		while (process != null && process.isOverdue(testTime)) {
-			process.kill();
-			process = availableProcesses.poll();
+		// Kill off old ones. Lifetimes vary, so the whole pool is checked.
+		for (MaximaProcess process : availableProcesses) {
+			if (process.isOverdue(testTime) && availableProcesses.remove(process)) {
+				process.kill();
+			}
 		}
-		if (process != null) {
-			availableProcesses.addFirst(process);
+	}
+
+	/**
+	 * Maintenance task for rolling replacement. Finds processes that will
+	 * expire within about two start-up times, and have no replacement yet.
+	 * @param testTime time to consider as now.
+	 * @return the processes. For each one, the caller should start a
+	 * replacement, and if that is accepted, call markForReplacement.
+	 */
+	List<MaximaProcess> getProcessesToReplace(long testTime) {
+		List<MaximaProcess> processes = new ArrayList<MaximaProcess>();
+		if (!processConfiguration.rollingReplacement) {
+			return processes;
+		}
+
+		long lookAhead = testTime + 2 * startupTimeEstimate;
+		synchronized (retiringProcesses) {
+			// Forget processes that have gone from the pool.
+			retiringProcesses.retainAll(availableProcesses);
+
+			for (MaximaProcess process : availableProcesses) {
+				if (process.isOverdue(lookAhead) && !retiringProcesses.contains(process)) {
+					processes.add(process);
+				}
+			}
+		}
+		return processes;
+	}
+
+	/**
+	 * Mark a process to be killed when a new process arrives, once its
+	 * replacement has been started.
+	 * @param process a process from getProcessesToReplace.
+	 */
+	void markForReplacement(MaximaProcess process) {
+		synchronized (retiringProcesses) {
+			if (!retiringProcesses.contains(process)) {
+				retiringProcesses.add(process);
+			}
 		}
 	}
 
@@ -169,24 +828,94 @@ public class ProcessPool {
 	void updateDemandEstimate(int dataPointsToKeep) {
 		// Do estimates
 		long totalTime = 0;
-		for (long t : startupTimeHistory) {
-			totalTime += t;
+		long measuredTime = 0;
+		int measuredCount = 0;
+		synchronized (startupTimeHistory) {
+			for (long t : startupTimeHistory) {
+				totalTime += t;
+			}
+			startupTimeEstimate = totalTime / startupTimeHistory.size();
+			measuredCount = startupTimeHistory.size() - (startupTimeSeeded ? 1 : 0);
+			measuredTime = totalTime - (startupTimeSeeded ? startupTimeHistory.get(0) : 0);
+		}
+
+		// The best is only ever taken from measured times, never the seed.
+		if (measuredCount >= Math.min(BEST_STARTUP_MINIMUM_STARTS, dataPointsToKeep)) {
+			long measuredEstimate = Math.max(measuredTime / measuredCount, 1);
+			if (bestStartupTimeEstimate == 0 || measuredEstimate < bestStartupTimeEstimate) {
+				bestStartupTimeEstimate = measuredEstimate;
+			} else {
+				bestStartupTimeEstimate += (measuredEstimate - bestStartupTimeEstimate)
+						/ Math.max(dataPointsToKeep, 1);
+			}
 		}
-		startupTimeEstimate = totalTime / startupTimeHistory.size();
 
 		// Math.max(..., 1) to avoid divide by zeros.
 		demandEstimate = 1000.0 * requestTimeHistory.size()
 				/ Math.max(System.currentTimeMillis() - requestTimeHistory.get(0), 1.0);
 
 		// Prune datasets
-		while (startupTimeHistory.size() > dataPointsToKeep) {
-			startupTimeHistory.remove(0);
+		synchronized (startupTimeHistory) {
+			while (startupTimeHistory.size() > dataPointsToKeep) {
+				startupTimeHistory.remove(0);
+				startupTimeSeeded = false;
+			}
 		}
 		while (requestTimeHistory.size() > dataPointsToKeep) {
 			requestTimeHistory.remove(0);
 		}
 	}
 
+	/**
+	 * Get the demand right now, from the requests since the last maintenance
+	 * cycle as well as the data points kept from before, so that a burst shows
+	 * up straight away, not at the next updateDemandEstimate.
+	 * @return frequency, in processes per second.
+	 */
+	double getCurrentDemand() {
+		synchronized (requestTimeHistory) {
+			if (requestTimeHistory.size() < 2) {
+				return demandEstimate;
+			}
+			return 1000.0 * requestTimeHistory.size()
+					/ Math.max(System.currentTimeMillis() - requestTimeHistory.get(0), 1.0);
+		}
+	}
+
+	/**
+	 * Start the estimates from values saved before a restart, rather than from
+	 * the configuration. The request history is filled with requests at the
+	 * saved rate, so the demand estimate holds until real requests replace them.
+	 * @param demand the demand estimate (Hz).
+	 * @param startupTime the start-up time estimate (ms).
+	 * @param memory the memory used by each process (bytes), or 0.
+	 * @param dataPoints the number of data points the averages are over.
+	 */
+	void restoreEstimates(double demand, long startupTime, long memory, int dataPoints) {
+		if (demand > 0) {
+			long now = System.currentTimeMillis();
+			long spacing = Math.max((long) (1000.0 / demand), 1);
+			synchronized (requestTimeHistory) {
+				requestTimeHistory.clear();
+				for (int i = 0; i < dataPoints; i++) {
+					requestTimeHistory.add(now - (dataPoints - i) * spacing);
+				}
+			}
+			demandEstimate = demand;
+		}
+		if (startupTime > 0) {
+			synchronized (startupTimeHistory) {
+				startupTimeHistory.clear();
+				startupTimeHistory.add(startupTime);
+				startupTimeSeeded = true;
+			}
+			startupTimeEstimate = startupTime;
+		}
+		if (memory > 0) {
+			memoryEstimate = memory;
+		}
+	}
+
 	/**
 	 * Get the demand estimate.
 	 * @return frequency, in processes per second.
@@ -195,6 +924,31 @@ public class ProcessPool {
 		return demandEstimate;
 	}
 
+	/**
+	 * @return the estimated start-up time (ms).
+	 */
+	long getStartupTimeEstimate() {
+		return startupTimeEstimate;
+	}
+
+	/**
+	 * @return how many times longer processes are now taking to start than
+	 * they have done at best.
+	 */
+	double getStartupSlowdown() {
+		if (bestStartupTimeEstimate == 0) {
+			return 1.0;
+		}
+		return (double) startupTimeEstimate / bestStartupTimeEstimate;
+	}
+
+	/**
+	 * @return the policy that decides how many processes this pool should have.
+	 */
+	SizingPolicy getSizingPolicy() {
+		return sizingPolicy;
+	}
+
 	public int getAvailableProcessesCount() {
 		return availableProcesses.size();
 	}
@@ -209,9 +963,18 @@ public class ProcessPool {
 		Map<String, String> status = new LinkedHashMap<String, String>();
 
 		status.put("Ready processes in the pool", "" + availableProcesses.size());
+		status.put("Processes starting up", "" + startingCount.get());
+		status.put("Target number of processes", sizingPolicy.describe());
+		synchronized (retiringProcesses) {
+			status.put("Processes waiting for a replacement", "" + retiringProcesses.size());
+		}
 		status.put("Total processes started", "" + processesStartedCount);
 		status.put("Current demand estimate", demandEstimate + " Hz");
+		status.put("Time since the last request", (System.currentTimeMillis() - lastRequestTime) + " ms");
 		status.put("Current start-up time estimate", startupTimeEstimate + " ms");
+		status.put("Memory per process", memoryEstimate > 0 ?
+				StringUtils.formatBytes(memoryEstimate) : "Not known");
+		status.putAll(circuitBreaker.getStatus());
 
 		StringBuffer startupTimes = new StringBuffer(100);
 		for (long time : startupTimeHistory) {
@@ -220,6 +983,16 @@ public class ProcessPool {
 		}
 		status.put("Recent start-up times", startupTimes.toString());
 
+		status.put("Start-up time percentiles", this.startupTimes.describe(" ms"));
+		status.put("Wait for a process percentiles", waitTimes.describe(" ms"));
+		status.put("Evaluation time percentiles", evaluationTimes.describe(" ms"));
+		status.put("Evaluation CPU time percentiles", evaluationCpuTimes.describe(" ms"));
+		status.put("Evaluation peak memory percentiles", evaluationPeakMemory.describe(" kB"));
+		for (int i = 0; i < startupPhaseTimes.length; i++) {
+			status.put("Start-up phase '" + MaximaProcess.STARTUP_PHASES[i] + "'",
+					startupPhaseTimes[i].describe(" ms"));
+		}
+
 		DateFormat df = new SimpleDateFormat("HH:mm:ss ");
 		StringBuffer requestTimes = new StringBuffer(100);
 		for (long time : requestTimeHistory) {
@@ -230,6 +1003,31 @@ public class ProcessPool {
 		return status;
 	}
 
+	/**
+	 * Add metrics about this pool to a set of metrics.
+	 * @param metrics the metrics to add to. Metric line => value.
+	 * @param labels labels identifying this pool, e.g. version="2017121800".
+	 */
+	void addMetrics(Map<String, String> metrics, String labels) {
+		metrics.put("maximapool_available_processes{" + labels + "}", "" + availableProcesses.size());
+		metrics.put("maximapool_processes_started_total{" + labels + "}", "" + processesStartedCount);
+		metrics.put("maximapool_demand_estimate_hz{" + labels + "}", "" + demandEstimate);
+		metrics.put("maximapool_startup_failures_total{" + labels + "}", "" + circuitBreaker.getTotalFailures());
+		metrics.put("maximapool_startup_circuit_open{" + labels + "}", circuitBreaker.isTripped() ? "1" : "0");
+		metrics.put("maximapool_process_memory_bytes{" + labels + "}", "" + memoryEstimate);
+		metrics.put("maximapool_target_processes{" + labels + "}", "" + sizingPolicy.getLastTarget());
+
+		startupTimes.addMetrics(metrics, "maximapool_startup_ms", labels);
+		waitTimes.addMetrics(metrics, "maximapool_wait_ms", labels);
+		evaluationTimes.addMetrics(metrics, "maximapool_evaluation_ms", labels);
+		evaluationCpuTimes.addMetrics(metrics, "maximapool_evaluation_cpu_ms", labels);
+		evaluationPeakMemory.addMetrics(metrics, "maximapool_evaluation_peak_memory_kb", labels);
+		for (int i = 0; i < startupPhaseTimes.length; i++) {
+			startupPhaseTimes[i].addMetrics(metrics, "maximapool_startup_phase_ms",
+					labels + ",phase=\"" + MaximaProcess.STARTUP_PHASES[i] + "\"");
+		}
+	}
+
 	/**
 	 * Get the configuration we are using.
 	 * @return the configuration.
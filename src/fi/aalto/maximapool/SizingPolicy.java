@@ -0,0 +1,234 @@
+package fi.aalto.maximapool;
+
+import fi.aalto.utils.Histogram;
+
+
+/**
+ * Decides how many processes one pool should have, ready or starting. Each
+ * pool has its own instance, so that a policy can keep state between cycles.
+ *
+ * Which policy is used is set by sizing.policy in pool.conf:
+ * <ul>
+ * <li>frequency: enough processes to cover the requests expected, at the
+ * current demand, while a replacement starts, times the safety multiplier.</li>
+ * <li>latency: feedback on how long requests actually wait for a process. The
+ * target is raised when the chosen percentile of the waits goes over the
+ * target wait, and lowered one at a time while processes are left spare.</li>
+ * </ul>
+ */
+abstract class SizingPolicy {
+
+	/** The number of processes most recently asked for, for reporting. */
+	protected volatile int lastTarget = 0;
+
+	/**
+	 * Create the policy configured for a pool.
+	 * @param poolConfiguration the pool configuration.
+	 * @return a new policy.
+	 */
+	static SizingPolicy create(PoolConfiguration poolConfiguration) {
+		if ("latency".equals(poolConfiguration.sizingPolicy)) {
+			return new LatencyPolicy(poolConfiguration.sizingWaitTarget,
+					poolConfiguration.sizingWaitPercentile, poolConfiguration.sizingWindow,
+					poolConfiguration.sizingWindowSamples);
+		}
+		return new FrequencyPolicy(poolConfiguration.safetyMultiplier);
+	}
+
+	/**
+	 * Record that a request has been given a process.
+	 * @param waitTime how long (ms) the request waited for it.
+	 * @param spareCount the number of processes left ready after it was taken.
+	 */
+	void recordTake(long waitTime, int spareCount) {
+	}
+
+	/**
+	 * Maintenance task, called once per maintenance cycle.
+	 * @param testTime time to consider as now.
+	 * @param pool the pool this policy is for.
+	 * @param minimum the fewest processes the pool may have.
+	 * @param maximum the most processes the pool may have.
+	 */
+	void update(long testTime, ProcessPool pool, int minimum, int maximum) {
+	}
+
+	/**
+	 * @param pool the pool this policy is for.
+	 * @param minimum the fewest processes the pool may have.
+	 * @param maximum the most processes the pool may have.
+	 * @return the number of processes the pool should have, ready or starting.
+	 */
+	int getTargetSize(ProcessPool pool, int minimum, int maximum) {
+		lastTarget = Math.min(Math.max(computeTargetSize(pool), minimum), maximum);
+		return lastTarget;
+	}
+
+	/**
+	 * @param pool the pool this policy is for.
+	 * @return the number of processes wanted, before the limits are applied.
+	 */
+	protected abstract int computeTargetSize(ProcessPool pool);
+
+	/**
+	 * @return a description of the target, for the status page.
+	 */
+	abstract String describe();
+
+	/**
+	 * @return the number of processes most recently asked for.
+	 */
+	int getLastTarget() {
+		return lastTarget;
+	}
+
+	/**
+	 * @return the target to save across a restart.
+	 */
+	int getTargetToSave() {
+		return lastTarget;
+	}
+
+	/**
+	 * Start from a target saved before a restart. Policies that work the
+	 * target out afresh each time ignore this.
+	 * @param target the saved target.
+	 */
+	void restoreTarget(int target) {
+	}
+
+	/**
+	 * Size the pool from the request frequency and the start-up time.
+	 */
+	static class FrequencyPolicy extends SizingPolicy {
+
+		/** Multiplier applied to the number of processes expected to be needed. */
+		private final double safetyMultiplier;
+
+		/**
+		 * Constructor.
+		 * @param safetyMultiplier multiplier applied to the number of processes
+		 * expected to be needed.
+		 */
+		FrequencyPolicy(double safetyMultiplier) {
+			this.safetyMultiplier = safetyMultiplier;
+		}
+
+		@Override
+		protected int computeTargetSize(ProcessPool pool) {
+			double expected = pool.getCurrentDemand() * pool.getStartupTimeEstimate() / 1000.0 *
+					safetyMultiplier;
+			return (int) Math.ceil(expected);
+		}
+
+		@Override
+		String describe() {
+			return lastTarget + " (from the demand and start-up time)";
+		}
+	}
+
+	/**
+	 * Size the pool by feedback from the time requests wait for a process.
+	 */
+	static class LatencyPolicy extends SizingPolicy {
+
+		/** The longest wait (ms) wanted at the given percentile. */
+		private final long waitTarget;
+
+		/** The percentile of the waits that is compared with waitTarget. */
+		private final double waitPercentile;
+
+		/** Time (ms) over which waits are gathered before each decision. */
+		private final long window;
+
+		/** A decision is made early once this many waits have been gathered. */
+		private final int windowSamples;
+
+		/** The number of processes wanted, or -1 before the first update. */
+		private int target = -1;
+
+		/** The waits since the last decision. */
+		private Histogram waits;
+
+		/** The fewest processes left ready after a take, since the last decision. */
+		private int lowestSpareCount = Integer.MAX_VALUE;
+
+		/** When the current window started. (System.currentTimeMillis();) */
+		private long windowStart = System.currentTimeMillis();
+
+		/** The measured wait at the percentile, at the last decision, for reporting. */
+		private long lastWait = 0;
+
+		/**
+		 * Constructor.
+		 * @param waitTarget the longest wait (ms) wanted at the given percentile.
+		 * @param waitPercentile the percentile of the waits that is compared
+		 * with waitTarget.
+		 * @param window time (ms) over which waits are gathered before each decision.
+		 * @param windowSamples a decision is made early once this many waits
+		 * have been gathered.
+		 */
+		LatencyPolicy(long waitTarget, double waitPercentile, long window, int windowSamples) {
+			this.waitTarget = waitTarget;
+			this.waitPercentile = waitPercentile;
+			this.window = window;
+			this.windowSamples = Math.max(windowSamples, 1);
+			this.waits = new Histogram(this.windowSamples);
+		}
+
+		@Override
+		synchronized void recordTake(long waitTime, int spareCount) {
+			waits.add(waitTime);
+			lowestSpareCount = Math.min(lowestSpareCount, spareCount);
+		}
+
+		@Override
+		synchronized void update(long testTime, ProcessPool pool, int minimum, int maximum) {
+			if (target < 0) {
+				target = minimum;
+			}
+			if (testTime - windowStart < window && waits.getCount() < windowSamples) {
+				return;
+			}
+
+			if (waits.getCount() > 0) {
+				lastWait = waits.percentile(waitPercentile);
+			}
+			if (waits.getCount() > 0 && lastWait > waitTarget) {
+				// Requests are waiting too long. Grow by half as much again.
+				target += Math.max(target / 2, 1);
+			} else if (lowestSpareCount > 1) {
+				// More than one process was left idle the whole time.
+				target -= 1;
+			}
+			target = Math.min(Math.max(target, minimum), maximum);
+
+			waits = new Histogram(windowSamples);
+			lowestSpareCount = Integer.MAX_VALUE;
+			windowStart = testTime;
+		}
+
+		@Override
+		protected synchronized int computeTargetSize(ProcessPool pool) {
+			return target;
+		}
+
+		@Override
+		synchronized int getTargetToSave() {
+			return target >= 0 ? target : lastTarget;
+		}
+
+		@Override
+		synchronized void restoreTarget(int target) {
+			if (target > 0) {
+				this.target = target;
+			}
+		}
+
+		@Override
+		synchronized String describe() {
+			return lastTarget + " (p" + String.format("%.0f", waitPercentile) + " wait " + lastWait +
+					" ms, aiming for at most " + waitTarget + " ms)";
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package fi.aalto.maximapool;
+
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Limits the number of processes starting up at any one time.
+ *
+ * If adaptive, the limit is adjusted on each maintenance cycle, like TCP
+ * congestion control (additive increase, multiplicative decrease). When the
+ * system load per processor is above loadThreshold, or processes are taking
+ * more than slowdownThreshold times as long to start as they have done at
+ * best, the limit is halved. It is then not halved again until the processes
+ * started since have had time to finish, and not for the slowdown unless it
+ * has got worse since. Otherwise, while every permit is in use, the limit goes
+ * up by one per cycle, up to maximumLimit.
+ */
+class StartupThrottle extends Semaphore {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The upper limit. */
+	private final int maximumLimit;
+
+	/** Whether to adjust the limit. */
+	private final boolean adaptive;
+
+	/** Load average per processor above which the limit is reduced. */
+	private final double loadThreshold;
+
+	/** Start-up time, relative to the best seen, above which the limit is reduced. */
+	private final double slowdownThreshold;
+
+	/** The current limit. */
+	private int limit;
+
+	/** The limit is not reduced again before this time. (System.currentTimeMillis();) */
+	private long noDecreaseBefore = 0;
+
+	/**
+	 * The slowdown when the limit was last reduced because of it, or 0. While
+	 * the slowdown stays at or below this, it is steady, and the limit may go
+	 * up again.
+	 */
+	private double slowdownAtDecrease = 0;
+
+	/** How much the slowdown must grow by to count as getting worse. */
+	private static final double SLOWDOWN_RISE = 1.1;
+
+	/** Why the limit was last reduced, for reporting. */
+	private String lastDecreaseReason = null;
+
+	/**
+	 * Constructor.
+	 * @param maximumLimit the upper limit, where the limit starts.
+	 * @param adaptive whether to adjust the limit.
+	 * @param loadThreshold load average per processor above which the limit is reduced.
+	 * @param slowdownThreshold start-up time, relative to the best seen, above
+	 * which the limit is reduced.
+	 */
+	StartupThrottle(int maximumLimit, boolean adaptive, double loadThreshold, double slowdownThreshold) {
+		super(maximumLimit);
+		this.maximumLimit = maximumLimit;
+		this.adaptive = adaptive;
+		this.loadThreshold = loadThreshold;
+		this.slowdownThreshold = slowdownThreshold;
+		this.limit = maximumLimit;
+	}
+
+	/**
+	 * Adjust the limit, given how the system is coping.
+	 * @param testTime time to consider as now.
+	 * @param loadPerProcessor the system load average divided by the number of
+	 * processors, or a negative number if not known.
+	 * @param slowdown how many times longer processes are taking to start
+	 * than they have done at best.
+	 * @param holdTime time (ms) after a reduction before the next one.
+	 */
+	synchronized void adjust(long testTime, double loadPerProcessor, double slowdown, long holdTime) {
+		if (!adaptive) {
+			return;
+		}
+
+		if (slowdown <= slowdownThreshold) {
+			slowdownAtDecrease = 0;
+		}
+
+		String reason = null;
+		boolean slowdownRising = false;
+		if (loadPerProcessor > loadThreshold) {
+			reason = "load average " + String.format("%.2f", loadPerProcessor) + " per processor";
+		} else if (slowdown > slowdownThreshold && slowdown > slowdownAtDecrease * SLOWDOWN_RISE) {
+			reason = "start-up " + String.format("%.1f", slowdown) + " times slower than at best";
+			slowdownRising = true;
+		}
+
+		if (reason != null) {
+			if (testTime >= noDecreaseBefore && limit > 1) {
+				int newLimit = Math.max(limit / 2, 1);
+				reducePermits(limit - newLimit);
+				limit = newLimit;
+				noDecreaseBefore = testTime + holdTime;
+				lastDecreaseReason = reason;
+				if (slowdownRising) {
+					slowdownAtDecrease = slowdown;
+				}
+			}
+		} else if (limit < maximumLimit && availablePermits() <= 0) {
+			limit++;
+			release();
+		}
+	}
+
+	/**
+	 * @return the current limit.
+	 */
+	synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return the number of processes starting up.
+	 */
+	synchronized int getStartingCount() {
+		return Math.max(limit - availablePermits(), 0);
+	}
+
+	/**
+	 * @return a description of the limit, for the status page.
+	 */
+	synchronized String describe() {
+		if (!adaptive) {
+			return "" + limit;
+		}
+		return limit + " (maximum " + maximumLimit + ")" + (lastDecreaseReason == null ? "" :
+				". Last reduced because of " + lastDecreaseReason);
+	}
+}
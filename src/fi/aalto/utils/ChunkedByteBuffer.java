@@ -0,0 +1,138 @@
+package fi.aalto.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only buffer of bytes, stored as a list of fixed-size segments so
+ * that growing it never copies what is already there.
+ *
+ * One thread may append while others read. Bytes never change once appended,
+ * so readers can work with any range below size().
+ */
+public class ChunkedByteBuffer {
+
+	/** Size of each segment. */
+	private static final int SEGMENT_SIZE = 8192;
+
+	/** The segments. All but the last are full. */
+	private final List<byte[]> segments = new ArrayList<byte[]>();
+
+	/** Number of bytes stored. */
+	private int size = 0;
+
+	/**
+	 * Add some bytes to the end of the buffer.
+	 * @param bytes array holding the bytes to add.
+	 * @param offset where the bytes start in the array.
+	 * @param length how many bytes to add.
+	 */
+	public synchronized void append(byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			int used = size % SEGMENT_SIZE;
+			if (used == 0 && size / SEGMENT_SIZE == segments.size()) {
+				segments.add(new byte[SEGMENT_SIZE]);
+			}
+			int count = Math.min(length, SEGMENT_SIZE - used);
+			System.arraycopy(bytes, offset, segments.get(size / SEGMENT_SIZE), used, count);
+			size += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * @return the number of bytes in the buffer.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @param index position in the buffer. Must be less than size().
+	 * @return the byte at that position.
+	 */
+	public synchronized byte byteAt(int index) {
+		return get(index);
+	}
+
+	/**
+	 * Find the first occurrence of a sequence of bytes.
+	 * @param pattern the bytes to look for.
+	 * @param from the position to start searching from.
+	 * @return the position of the first match at or after from, or -1 if there is none.
+	 */
+	public synchronized int indexOf(byte[] pattern, int from) {
+		int last = size - pattern.length;
+		for (int i = Math.max(from, 0); i <= last; i++) {
+			int j = 0;
+			while (j < pattern.length && get(i + j) == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Unsynchronised version of byteAt, for use when already holding the lock.
+	 */
+	private byte get(int index) {
+		return segments.get(index / SEGMENT_SIZE)[index % SEGMENT_SIZE];
+	}
+
+	/**
+	 * Copy part of the buffer to a stream. The stream is written to without
+	 * holding the lock, so a slow stream does not hold up append().
+	 * @param out where to write the bytes.
+	 * @param start the first position to copy.
+	 * @param end the position after the last one to copy.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, int start, int end) throws IOException {
+		List<byte[]> toWrite;
+		synchronized (this) {
+			end = Math.min(end, size);
+			if (start >= end) {
+				return;
+			}
+			toWrite = new ArrayList<byte[]>(segments.subList(
+					start / SEGMENT_SIZE, (end - 1) / SEGMENT_SIZE + 1));
+		}
+
+		int position = start - start % SEGMENT_SIZE;
+		for (byte[] segment : toWrite) {
+			int from = Math.max(start - position, 0);
+			int to = Math.min(end - position, SEGMENT_SIZE);
+			out.write(segment, from, to - from);
+			position += SEGMENT_SIZE;
+		}
+	}
+
+	/**
+	 * Decode part of the buffer as a string.
+	 * @param start the first position to decode.
+	 * @param end the position after the last one to decode.
+	 * @param charset the character encoding of the bytes.
+	 * @return the decoded string.
+	 */
+	public synchronized String toString(int start, int end, Charset charset) {
+		end = Math.min(end, size);
+		if (start >= end) {
+			return "";
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; ) {
+			int offset = i % SEGMENT_SIZE;
+			int count = Math.min(end - i, SEGMENT_SIZE - offset);
+			System.arraycopy(segments.get(i / SEGMENT_SIZE), offset, bytes, i - start, count);
+			i += count;
+		}
+		return new String(bytes, charset);
+	}
+}
@@ -0,0 +1,127 @@
+package fi.aalto.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Records a series of measurements (typically durations in ms), so that
+ * percentiles of the recent values can be reported. Only the most recent
+ * values are kept, but the count and total cover everything ever added.
+ */
+public class Histogram {
+
+	/** The percentiles that are reported by describe() and addMetrics(). */
+	private static final double[] REPORTED_PERCENTILES = {50, 90, 95, 99};
+
+	/** The most recent values, used as a ring buffer. */
+	private final long[] recentValues;
+
+	/** Where in recentValues the next value goes. */
+	private int next = 0;
+
+	/** How many entries of recentValues are in use. */
+	private int filled = 0;
+
+	/** Number of values ever added. */
+	private long count = 0;
+
+	/** Sum of all values ever added. */
+	private long total = 0;
+
+	/**
+	 * @param capacity the number of recent values to keep for the percentiles.
+	 */
+	public Histogram(int capacity) {
+		recentValues = new long[capacity];
+	}
+
+	/**
+	 * Record a measurement.
+	 * @param value the value measured.
+	 */
+	public synchronized void add(long value) {
+		recentValues[next] = value;
+		next = (next + 1) % recentValues.length;
+		filled = Math.min(filled + 1, recentValues.length);
+		count += 1;
+		total += value;
+	}
+
+	/**
+	 * @return the number of values ever added.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the sum of all the values ever added.
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Compute a percentile of the recent values, using the nearest-rank method.
+	 * @param percentile between 0 and 100.
+	 * @return the value, or 0 if nothing has been recorded yet.
+	 */
+	public long percentile(double percentile) {
+		long[] sorted = sortedValues();
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+	}
+
+	/**
+	 * @param unit unit to show after each number, e.g. " ms".
+	 * @return a human-readable summary of the recent values.
+	 */
+	public String describe(String unit) {
+		long[] sorted = sortedValues();
+		if (sorted.length == 0) {
+			return "No data";
+		}
+
+		StringBuffer description = new StringBuffer(100);
+		for (double percentile : REPORTED_PERCENTILES) {
+			int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+			description.append("p" + (int) percentile + " " + sorted[Math.max(rank, 1) - 1] + unit + ", ");
+		}
+		description.append("max " + sorted[sorted.length - 1] + unit);
+		description.append(" (last " + sorted.length + " of " + getCount() + ")");
+		return description.toString();
+	}
+
+	/**
+	 * Add this histogram to a set of metrics, as a summary in the Prometheus
+	 * text format.
+	 * @param metrics the metrics to add to. Metric line => value.
+	 * @param name the metric name.
+	 * @param labels labels to add to each line, e.g. version="2017121800",
+	 * or an empty string.
+	 */
+	public void addMetrics(Map<String, String> metrics, String name, String labels) {
+		String separator = labels.length() > 0 ? "," : "";
+		for (double percentile : REPORTED_PERCENTILES) {
+			metrics.put(name + "{" + labels + separator + "quantile=\"" + percentile / 100.0 + "\"}",
+					"" + percentile(percentile));
+		}
+		String suffix = labels.length() > 0 ? "{" + labels + "}" : "";
+		synchronized (this) {
+			metrics.put(name + "_count" + suffix, "" + count);
+			metrics.put(name + "_sum" + suffix, "" + total);
+		}
+	}
+
+	/**
+	 * @return a sorted copy of the recent values.
+	 */
+	private synchronized long[] sortedValues() {
+		long[] sorted = Arrays.copyOf(recentValues, filled);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
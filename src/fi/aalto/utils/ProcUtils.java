@@ -0,0 +1,182 @@
+package fi.aalto.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * Various helper methods for reading information about processes from the
+ * Linux /proc file system. On other systems, these methods return nothing.
+ */
+public abstract class ProcUtils {
+
+	/** Where the proc file system is mounted. */
+	private static final File PROC = new File("/proc");
+
+	/** Field number (see man 5 proc) of the session id in /proc/[pid]/stat. */
+	public static final int STAT_SESSION = 6;
+
+	/** Field number of the time the process started, in clock ticks after boot. */
+	public static final int STAT_START_TIME = 22;
+
+	/**
+	 * @return whether /proc is available.
+	 */
+	public static boolean isAvailable() {
+		return new File(PROC, "self/stat").isFile();
+	}
+
+	/**
+	 * @return the ids of all the processes currently running, or an empty list
+	 * if /proc is not available.
+	 */
+	public static List<Long> listProcessIds() {
+		List<Long> pids = new LinkedList<Long>();
+		String[] names = PROC.list();
+		if (names == null) {
+			return pids;
+		}
+		for (String name : names) {
+			if (name.length() > 0 && Character.isDigit(name.charAt(0))) {
+				try {
+					pids.add(Long.parseLong(name));
+				} catch (NumberFormatException e) {
+					// Not a process.
+				}
+			}
+		}
+		return pids;
+	}
+
+	/**
+	 * Read /proc/[pid]/stat.
+	 * @param pid a process id.
+	 * @return the fields, starting from field 3 (state), since the command name
+	 * in field 2 may contain spaces. Use getStatField to pick out a field by
+	 * its number. null if the process does not exist.
+	 */
+	public static String[] readStat(long pid) {
+		String stat;
+		try {
+			stat = new String(Files.readAllBytes(new File(PROC, pid + "/stat").toPath()),
+					StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return null;
+		}
+		int commandEnd = stat.lastIndexOf(')');
+		if (commandEnd < 0 || commandEnd + 2 > stat.length()) {
+			return null;
+		}
+		return stat.substring(commandEnd + 2).trim().split(" ");
+	}
+
+	/**
+	 * @param fields fields returned by readStat.
+	 * @param fieldNumber the number of the field, as in man 5 proc.
+	 * @return the value of the field as a number, or -1 if it is missing.
+	 */
+	public static long getStatField(String[] fields, int fieldNumber) {
+		int index = fieldNumber - 3;
+		if (fields == null || index < 0 || index >= fields.length) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(fields[index]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param pid a process id.
+	 * @return the resident set size of the process (VmRSS in /proc/[pid]/status),
+	 * in bytes, or -1 if it is not known.
+	 */
+	public static long readResidentSetSize(long pid) {
+		return readKilobytes(new File(PROC, pid + "/status"), "VmRSS:");
+	}
+
+	/**
+	 * @param pid a process id.
+	 * @return the peak resident set size of the process (VmHWM in
+	 * /proc/[pid]/status), in bytes, or -1 if it is not known.
+	 */
+	public static long readPeakResidentSetSize(long pid) {
+		return readKilobytes(new File(PROC, pid + "/status"), "VmHWM:");
+	}
+
+	/**
+	 * Reset the peak resident set size of a process to its current size, so
+	 * that the peak of what it does next can be measured.
+	 * @param pid a process id, which must belong to the same user.
+	 * @return whether it worked.
+	 */
+	public static boolean resetPeakResidentSetSize(long pid) {
+		try {
+			Files.write(new File(PROC, pid + "/clear_refs").toPath(),
+					"5".getBytes(StandardCharsets.US_ASCII));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the memory available for starting new processes without swapping
+	 * (MemAvailable in /proc/meminfo), in bytes, or -1 if it is not known.
+	 */
+	public static long readAvailableMemory() {
+		return readKilobytes(new File(PROC, "meminfo"), "MemAvailable:");
+	}
+
+	/**
+	 * @return the CPUs this process (the JVM) may run on, in the form taskset -c
+	 * takes, e.g. 0-3,8 (Cpus_allowed_list in /proc/self/status), or null if
+	 * that is not known.
+	 */
+	public static String readAllowedCpus() {
+		String key = "Cpus_allowed_list:";
+		try {
+			for (String line : Files.readAllLines(new File(PROC, "self/status").toPath(),
+					StandardCharsets.UTF_8)) {
+				if (line.startsWith(key)) {
+					return line.substring(key.length()).trim();
+				}
+			}
+		} catch (IOException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * Read a value from one of the /proc files made of lines like "Name: 123 kB".
+	 * @param file the file.
+	 * @param key the start of the line, including the colon.
+	 * @return the value in bytes, or -1 if it could not be read.
+	 */
+	private static long readKilobytes(File file, String key) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			lines = Collections.emptyList();
+		}
+		for (String line : lines) {
+			if (!line.startsWith(key)) {
+				continue;
+			}
+			String[] parts = line.substring(key.length()).trim().split("\\s+");
+			try {
+				return Long.parseLong(parts[0]) * 1024;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+}
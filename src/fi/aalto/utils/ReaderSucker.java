@@ -1,22 +1,26 @@
 package fi.aalto.utils;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Semaphore;
 
 /**
- * This utility accumulates all the input so far from a reader into a
- * StringBuffer so that it can easily be accessed.
+ * This utility accumulates all the input so far from a stream into a
+ * ChunkedByteBuffer so that it can easily be accessed.
+ *
+ * The bytes are kept exactly as they were read. They are only decoded, as
+ * UTF-8, when the output is asked for as a String.
  *
  * @author Matti Harjula
  */
 public class ReaderSucker {
 
-	/** All the input from the reader is accumulated here. */
-	private StringBuffer value = new StringBuffer();
+	/** All the input from the stream is accumulated here. */
+	private ChunkedByteBuffer value = new ChunkedByteBuffer();
 
-	/** The reader we are reading from. */
-	private Reader reader;
+	/** The stream we are reading from. */
+	private InputStream reader;
 
 	/** Records when the end of the input is detected. */
 	private volatile boolean foundEnd = false;
@@ -25,10 +29,10 @@ public class ReaderSucker {
 	private Semaphore runSwitch;
 
 	/**
-	 * @param source the Reader to read from.
+	 * @param source the stream to read from.
 	 * @param runSwitch the run switch to use.
 	 */
-	public ReaderSucker(Reader source, Semaphore runSwitch) {
+	public ReaderSucker(InputStream source, Semaphore runSwitch) {
 		reader = source;
 		this.runSwitch = runSwitch;
 		start();
@@ -39,7 +43,7 @@ public class ReaderSucker {
 		String threadName = Thread.currentThread().getName().replace("-starter-", "-readersucker-");
 		Thread worker = new Thread(threadName) {
 			public void run() {
-				char[] buffer = new char[1024];
+				byte[] buffer = new byte[4096];
 				int i = 0;
 				while (!foundEnd) {
 					try {
@@ -48,14 +52,14 @@ public class ReaderSucker {
 					}
 					i = 0;
 					try {
-						if (reader.ready()) {
+						if (reader.available() > 0) {
 							i = reader.read(buffer);
 						}
 					} catch (IOException e) {
 					}
 					runSwitch.release();
 					if (i > 0) {
-						value.append(new String(buffer, 0, i));
+						value.append(buffer, 0, i);
 					} else if (i == -1) {
 						foundEnd = true;
 						break;
@@ -92,10 +96,17 @@ public class ReaderSucker {
 	}
 
 	/**
-	 * @return all the output so far.
+	 * @return all the output so far, decoded as UTF-8.
 	 */
 	public String currentValue() {
-		return value.toString();
+		return value.toString(0, value.size(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the buffer holding the raw bytes of all the output so far.
+	 */
+	public ChunkedByteBuffer getBuffer() {
+		return value;
 	}
 
 	/**